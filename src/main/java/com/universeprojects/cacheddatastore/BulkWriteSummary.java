@@ -0,0 +1,146 @@
+package com.universeprojects.cacheddatastore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes what happened during a bulk write, see CachedDatastoreService.beginBulkWriteMode(). 
+ * 
+ * Every datastore call that was made for the bulk write is listed as a chunk, including the ones
+ * made by automatic flushes before commitBulkWrite() was called. A failed chunk does not stop the 
+ * other chunks from being written.
+ *
+ * @author Owner
+ *
+ */
+public class BulkWriteSummary
+{
+	public enum Operation
+	{
+		PUT,
+		DELETE
+	}
+	
+	public static class Chunk
+	{
+		private final Operation operation;
+		private final int entityCount;
+		private final long durationMs;
+		private final Throwable error;
+		
+		Chunk(Operation operation, int entityCount, long durationMs, Throwable error)
+		{
+			this.operation = operation;
+			this.entityCount = entityCount;
+			this.durationMs = durationMs;
+			this.error = error;
+		}
+		
+		public Operation getOperation()
+		{
+			return operation;
+		}
+		
+		public int getEntityCount()
+		{
+			return entityCount;
+		}
+		
+		/**
+		 * Since chunks run in parallel, this is the time from when the chunk was started until its result
+		 * was collected. 
+		 * 
+		 * @return
+		 */
+		public long getDurationMs()
+		{
+			return durationMs;
+		}
+		
+		/**
+		 * @return The reason the chunk failed, or null if it succeeded.
+		 */
+		public Throwable getError()
+		{
+			return error;
+		}
+		
+		public boolean isSuccessful()
+		{
+			return error==null;
+		}
+	}
+	
+	private final List<Chunk> chunks = new ArrayList<>();
+	private int flushCount = 0;
+	private long totalDurationMs = 0;
+	
+	void addChunk(Operation operation, int entityCount, long durationMs, Throwable error)
+	{
+		chunks.add(new Chunk(operation, entityCount, durationMs, error));
+	}
+	
+	void addFlush(long durationMs)
+	{
+		flushCount++;
+		totalDurationMs += durationMs;
+	}
+	
+	public List<Chunk> getChunks()
+	{
+		return Collections.unmodifiableList(chunks);
+	}
+	
+	public List<Chunk> getFailedChunks()
+	{
+		List<Chunk> result = new ArrayList<>();
+		for(Chunk chunk:chunks)
+			if (chunk.isSuccessful()==false)
+				result.add(chunk);
+		return result;
+	}
+	
+	public boolean hasFailures()
+	{
+		for(Chunk chunk:chunks)
+			if (chunk.isSuccessful()==false)
+				return true;
+		return false;
+	}
+	
+	/**
+	 * @param operation
+	 * @return How many entities were successfully written with the given operation.
+	 */
+	public int getWrittenCount(Operation operation)
+	{
+		int count = 0;
+		for(Chunk chunk:chunks)
+			if (chunk.getOperation()==operation && chunk.isSuccessful())
+				count += chunk.getEntityCount();
+		return count;
+	}
+	
+	/**
+	 * @return How many times the buffered writes were sent to the datastore, including the final flush done by commitBulkWrite().
+	 */
+	public int getFlushCount()
+	{
+		return flushCount;
+	}
+	
+	/**
+	 * @return The total time spent flushing, which includes the time spent on cache updates.
+	 */
+	public long getTotalDurationMs()
+	{
+		return totalDurationMs;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "BulkWriteSummary [flushes="+flushCount+", chunks="+chunks.size()+", puts="+getWrittenCount(Operation.PUT)+", deletes="+getWrittenCount(Operation.DELETE)+", failedChunks="+getFailedChunks().size()+", totalDurationMs="+totalDurationMs+"]";
+	}
+}
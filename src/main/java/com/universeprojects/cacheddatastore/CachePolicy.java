@@ -0,0 +1,185 @@
+package com.universeprojects.cacheddatastore;
+
+/**
+ * Describes how the entities of a kind are cached by the CachedDatastoreService. Policies are immutable, 
+ * the with...() methods return a modified copy.
+ * 
+ * Hot reference data can use MEMCACHE_AND_INSTANCE so it's served from the instance cache, while huge 
+ * log-like kinds can use NONE so they never take up memcache space. A scan-only kind is only ever read 
+ * by queries, so queries fetch its entities directly instead of fetching keys and then looking the 
+ * entities up in the caches, and query results are not put into the caches.
+ * 
+ * The keys returned by a kind's queries can be cached as well, see withQueryCache().
+ *
+ * @author Owner
+ *
+ */
+public class CachePolicy
+{
+	public enum Tier
+	{
+		/** Entities are always read from and written to the datastore directly. */
+		NONE,
+		MEMCACHE,
+		/** Memcache plus the in-process instance cache, see CachedDatastoreService.enableInstanceCacheForKind(). */
+		MEMCACHE_AND_INSTANCE
+	}
+	
+	/**
+	 * Memcache only, without an expiry. This is how every kind was cached before policies existed.
+	 */
+	public static final CachePolicy DEFAULT = new CachePolicy(Tier.MEMCACHE, 0, 0, false, false, QueryCacheMode.NONE, 0);
+	public static final CachePolicy NONE = new CachePolicy(Tier.NONE, 0, 0, false, false, QueryCacheMode.NONE, 0);
+	
+	private final Tier tier;
+	private final long memcacheTtlMs;
+	private final long instanceCacheTtlMs;
+	private final boolean writeBehind;
+	private final boolean scanOnly;
+	private final QueryCacheMode queryCacheMode;
+	private final long queryCacheTtlMs;
+	
+	private CachePolicy(Tier tier, long memcacheTtlMs, long instanceCacheTtlMs, boolean writeBehind, boolean scanOnly, QueryCacheMode queryCacheMode, long queryCacheTtlMs)
+	{
+		this.tier = tier;
+		this.memcacheTtlMs = memcacheTtlMs;
+		this.instanceCacheTtlMs = instanceCacheTtlMs;
+		this.writeBehind = writeBehind;
+		this.scanOnly = scanOnly;
+		this.queryCacheMode = queryCacheMode;
+		this.queryCacheTtlMs = queryCacheTtlMs;
+	}
+	
+	public Tier getTier()
+	{
+		return tier;
+	}
+	
+	/**
+	 * @return How long entities live in memcache, 0 means they live until memcache evicts them.
+	 */
+	public long getMemcacheTtlMs()
+	{
+		return memcacheTtlMs;
+	}
+	
+	public long getInstanceCacheTtlMs()
+	{
+		return instanceCacheTtlMs;
+	}
+	
+	/**
+	 * Write-behind only applies to kinds that use memcache, see CachedDatastoreService.enableWriteBehindForKind().
+	 * 
+	 * @return
+	 */
+	public boolean isWriteBehind()
+	{
+		return writeBehind;
+	}
+	
+	public boolean isScanOnly()
+	{
+		return scanOnly;
+	}
+	
+	public QueryCacheMode getQueryCacheMode()
+	{
+		return queryCacheMode;
+	}
+	
+	public long getQueryCacheTtlMs()
+	{
+		return queryCacheTtlMs;
+	}
+	
+	public boolean usesMemcache()
+	{
+		return tier!=Tier.NONE;
+	}
+	
+	public boolean usesInstanceCache()
+	{
+		return tier==Tier.MEMCACHE_AND_INSTANCE;
+	}
+	
+	/**
+	 * Switching to MEMCACHE_AND_INSTANCE this way requires the instance cache TTL to be set already, 
+	 * use withInstanceCacheTtl() instead.
+	 * 
+	 * @param tier
+	 * @return
+	 */
+	public CachePolicy withTier(Tier tier)
+	{
+		if (tier==null) throw new IllegalArgumentException("tier cannot be null.");
+		if (tier==Tier.MEMCACHE_AND_INSTANCE && instanceCacheTtlMs<=0) throw new IllegalStateException("Set the instance cache TTL with withInstanceCacheTtl() first.");
+		return new CachePolicy(tier, memcacheTtlMs, instanceCacheTtlMs, writeBehind, scanOnly, queryCacheMode, queryCacheTtlMs);
+	}
+	
+	/**
+	 * @param memcacheTtlMs 0 for no expiry.
+	 * @return
+	 */
+	public CachePolicy withMemcacheTtl(long memcacheTtlMs)
+	{
+		if (memcacheTtlMs<0) throw new IllegalArgumentException("memcacheTtlMs cannot be negative.");
+		if (memcacheTtlMs>Integer.MAX_VALUE) throw new IllegalArgumentException("memcacheTtlMs is too large.");
+		return new CachePolicy(tier, memcacheTtlMs, instanceCacheTtlMs, writeBehind, scanOnly, queryCacheMode, queryCacheTtlMs);
+	}
+	
+	/**
+	 * Sets the instance cache TTL and switches the tier to MEMCACHE_AND_INSTANCE.
+	 * 
+	 * @param instanceCacheTtlMs
+	 * @return
+	 */
+	public CachePolicy withInstanceCacheTtl(long instanceCacheTtlMs)
+	{
+		if (instanceCacheTtlMs<=0) throw new IllegalArgumentException("instanceCacheTtlMs must be greater than 0.");
+		return new CachePolicy(Tier.MEMCACHE_AND_INSTANCE, memcacheTtlMs, instanceCacheTtlMs, writeBehind, scanOnly, queryCacheMode, queryCacheTtlMs);
+	}
+	
+	/**
+	 * Write-behind can't be combined with the query cache. The query cache counters would move when a put is 
+	 * buffered, so a query running before the buffer is flushed would cache the old result under the new counters.
+	 * 
+	 * @param writeBehind
+	 * @return
+	 */
+	public CachePolicy withWriteBehind(boolean writeBehind)
+	{
+		if (writeBehind && queryCacheMode!=QueryCacheMode.NONE) throw new IllegalStateException("A query cached kind cannot use write-behind, turn the query cache off first.");
+		return new CachePolicy(tier, memcacheTtlMs, instanceCacheTtlMs, writeBehind, scanOnly, queryCacheMode, queryCacheTtlMs);
+	}
+	
+	public CachePolicy withScanOnly(boolean scanOnly)
+	{
+		return new CachePolicy(tier, memcacheTtlMs, instanceCacheTtlMs, writeBehind, scanOnly, queryCacheMode, queryCacheTtlMs);
+	}
+	
+	/**
+	 * Query results are cached in memcache whatever the tier is. Since non-ancestor queries are only eventually 
+	 * consistent, a query that runs right after a write can still miss it and be cached that way until the next 
+	 * change, so the TTL should be kept fairly short. Kinds that use write-behind can't be query cached, see withWriteBehind().
+	 * 
+	 * @param queryCacheMode
+	 * @param queryCacheTtlMs How long a cached result lives, 0 for no expiry. QueryCacheMode.PROPERTY requires a TTL.
+	 * @return
+	 */
+	public CachePolicy withQueryCache(QueryCacheMode queryCacheMode, long queryCacheTtlMs)
+	{
+		if (queryCacheMode==null) throw new IllegalArgumentException("queryCacheMode cannot be null.");
+		if (queryCacheTtlMs<0) throw new IllegalArgumentException("queryCacheTtlMs cannot be negative.");
+		if (queryCacheTtlMs>Integer.MAX_VALUE) throw new IllegalArgumentException("queryCacheTtlMs is too large.");
+		if (queryCacheMode==QueryCacheMode.PROPERTY && queryCacheTtlMs==0) throw new IllegalArgumentException("QueryCacheMode.PROPERTY needs a queryCacheTtlMs, a result made stale by a concurrent writer would otherwise never expire.");
+		if (writeBehind && queryCacheMode!=QueryCacheMode.NONE) throw new IllegalStateException("A write-behind kind cannot be query cached, turn write-behind off first.");
+		return new CachePolicy(tier, memcacheTtlMs, instanceCacheTtlMs, writeBehind, scanOnly, queryCacheMode, queryCacheTtlMs);
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "CachePolicy[tier="+tier+", memcacheTtlMs="+memcacheTtlMs+", instanceCacheTtlMs="+instanceCacheTtlMs+", writeBehind="+writeBehind+", scanOnly="+scanOnly+", queryCacheMode="+queryCacheMode+", queryCacheTtlMs="+queryCacheTtlMs+"]";
+	}
+}
@@ -1,21 +1,42 @@
 package com.universeprojects.cacheddatastore;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.apache.commons.codec.binary.Base64;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
@@ -31,9 +52,11 @@ import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.memcache.AsyncMemcacheService;
 import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.InvalidValueException;
 import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.CasValues;
 import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
 import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
@@ -42,13 +65,43 @@ import com.google.appengine.tools.remoteapi.RemoteApiInstaller;
 import com.google.appengine.tools.remoteapi.RemoteApiOptions;
 
 
+/**
+ * Gets and queries made outside of a transaction can be run from several threads on the same instance,
+ * use fetchPage() and fetchKeysPage() to page through queries. 
+ * 
+ * A transaction belongs to the thread that began it (like the datastore's own implicit transactions), other 
+ * threads keep working outside of it and can't begin their own until it is committed or rolled back. 
+ * Bulk put mode, write-behind and the per-request tracking are not thread safe and are meant to be used by 
+ * one thread at a time.
+ */
 public class CachedDatastoreService
 {
 	private Logger log = Logger.getLogger(this.getClass().toString());	
-	private static ConcurrentHashMap<String,InstanceCacheWrapper> instanceCache = new ConcurrentHashMap<String,InstanceCacheWrapper>();
+	private static InstanceCache instanceCache = new InstanceCache();
+	// Policies set in code, these take precedence over the ones the schema declares. See getCachePolicy().
+	private static ConcurrentMap<String, CachePolicy> cachePolicies = new ConcurrentHashMap<String, CachePolicy>();
+	private static long kindGenerationCheckIntervalMs = 1000;
+	private static ConcurrentMap<Key, InFlightLoad> inFlightLoads = new ConcurrentHashMap<Key, InFlightLoad>();
+	private static long cacheFillLeaseMs = 2000;
+	private static long cacheFillLeaseWaitMs = 500;
+	private static long cacheFillLeasePollMs = 20;
+	private static long negativeCacheTtlMs = 30000;
+	private static int writeBehindBufferSize = 100;
+	private static final AtomicLong failedPostCommitCacheUpdates = new AtomicLong();
+	private static int consecutiveSingleGetWarningThreshold = 0;
+	private static ConcurrentMap<String, KindHitRatio> memcacheHitRatios = new ConcurrentHashMap<String, KindHitRatio>();
+	private static boolean hedgedReadsEnabled = false;
+	private static long hedgedReadDeadlineMs = 20;
+	private static double hedgedReadMissRateThreshold = 0.5;
 	
 	public static boolean singleEntityMode = false; 
 	public static boolean singlePutMode = false; 
+	/**
+	 * Debug flag for singlePutMode. When on, the stacktrace of every put is kept so an EntityAlreadyPutException 
+	 * can show where the entity was first put. This is expensive on bulk puts, see setSinglePutStacktraceSampleRate().
+	 */
+	public static boolean singlePutStacktraceMode = false;
+	private static int singlePutStacktraceSampleRate = 0;
 	final public static boolean statsTracking = false;
 	final public static String MC_GETS = "Stats_MC_GETS";
 	final public static String DS_GETS = "Stats_DS_GETS";
@@ -62,23 +115,58 @@ public class CachedDatastoreService
 	final public static String QUERYKEYCACHE_DB_ENTITIES = "Stats_MC_QUERYKEYCACHE_DB_ENTITIES";
 	
 	final public String mcPrefix = "MCENTITY"; 
+	final public static String KIND_GENERATION_PREFIX = "KINDGEN-";
+	// Memcache keys longer than this are hashed, see toMemcacheKey()
+	final public static int MAX_UNHASHED_MEMCACHE_KEY_LENGTH = 200;
+	final private static int MAX_MEMCACHE_KEY_CACHE_SIZE = 10000;
+	// Encoded entities bigger than this are split into chunks since memcache values are limited to 1MB (including the key and some overhead)
+	final public static int MAX_MEMCACHE_VALUE_BYTES = 1000*1000;
+	final private static EntityValueCodec DEFAULT_ENTITY_VALUE_CODEC = new DeflateEntityValueCodec();
+	private static EntityValueCodec entityValueCodec = DEFAULT_ENTITY_VALUE_CODEC;
+	private static ConcurrentMap<String, MemcacheValueStats> memcacheValueStats = new ConcurrentHashMap<String, MemcacheValueStats>();
+	private static final Random random = new Random();
+	
+	// Batch limits. Bigger batches are split up into chunks of this size that run in parallel.
+	final public static int MAX_DATASTORE_GET_BATCH = 1000;
+	final public static int MAX_DATASTORE_PUT_BATCH = 500;
+	final public static int MAX_DATASTORE_DELETE_BATCH = 500;
+	final public static long MAX_DATASTORE_PUT_BATCH_BYTES = 5L*1024L*1024L;
+	final public static int MAX_MEMCACHE_BATCH = 1000;
+	final public static long MAX_MEMCACHE_BATCH_BYTES = 8L*1024L*1024L;
+	private static int maxConcurrentBatchRpcs = 8;
 	boolean cacheEnabled = true;
-	boolean queryModelCacheEnabled = false;
+	// Kinds still have to opt in with a query cache mode, see CachePolicy.withQueryCache()
+	boolean queryModelCacheEnabled = true;
 	
 	Set<CachedEntity> entitiesToBulkPut = new HashSet<CachedEntity>();
 	Set<Key> entitiesToBulkDelete = new HashSet<Key>();
 	boolean bulkPutMode = false;
+	private int bulkWriteMaxEntities = 1000;
+	private long bulkWriteMaxBytes = 16L*1024L*1024L;
+	private long bulkPutEstimatedBytes = 0;
+	// The size each buffered entity was counted with, so putting it again only counts the difference
+	private Map<CachedEntity, Long> bulkPutEstimates = new HashMap<>();
+	// Incomplete keys that were completed by earlier flushes (by instance), entities added later may still refer to them
+	private Map<Key, Key> bulkWriteCompletedKeys = null;
+	private BulkWriteSummary bulkWriteSummary = null;
 	
 	DatastoreService db = null;
 	MemcacheService mc = null;
+	AsyncDatastoreService asyncDb = null;
+	AsyncMemcacheService asyncMc = null;
 	
 	boolean enforceEntityFetchWithinTransaction = false;
 	Set<Key> transactionallyFetchedEntities = null;
 	Set<Key> transactionallyDeletedEntities = null;
 	Map<Key, Entity> transactionallyChangedEntities = null;
+	// Writes made inside of the transaction that are only sent to the datastore right before the commit
+	private Map<Key, Entity> transactionalPutBuffer = null;
+	private Set<Key> transactionalDeleteBuffer = null;
+	// Query cache counters to increment once the transaction commits
+	private Set<String> pendingQueryCacheInvalidations = null;
 	
-	PreparedQuery pq = null;
-	Cursor lastQuery_endCursor = null;
+	// Only here for getLastQueryCursor(), each thread sees the cursor of its own last query
+	private final ThreadLocal<Cursor> lastQueryCursor = new ThreadLocal<>();
 	
 	private static RemoteApiOptions options = null;
 	private static boolean disableRemoteAPI = false;
@@ -86,11 +174,30 @@ public class CachedDatastoreService
 	Map<String,List<Long>> preallocatedIds = new HashMap<String, List<Long>>();
 	private Map<String, Integer> autoPreallocationCount = new HashMap<String, Integer>();
 
-	private Map<String,CachedEntity> entitiesFetchedThisRequest;
-	private Set<String> entitiesPutThisRequest;
-	private Set<String> entitiesDeletedThisRequest;
-	
-	private Transaction currentTransaction = null;
+	private Map<Key,CachedEntity> entitiesFetchedThisRequest;
+	private Set<Key> entitiesPutThisRequest;
+	private Set<Key> entitiesDeletedThisRequest;
+	
+	// Only the thread that began the transaction sees it as active, see isTransactionActive()
+	private volatile Transaction currentTransaction = null;
+	private volatile Thread transactionThread = null;
+	private final Object transactionLock = new Object();
+	
+	private List<DeferredEntity> pendingDeferredEntities = null;
+	// Puts for write-behind kinds that haven't been sent to the datastore yet, see enableWriteBehindForKind()
+	private Map<Key, Entity> writeBehindBuffer = null;
+	private List<WriteBehindBatch> pendingWriteBehindBatches = null;
+	// Memcache updates for committed transactions that were sent off but not checked yet
+	// Both are replaced as a whole under postCommitCacheUpdateLock (never changed in place) since gets on other threads check them
+	private volatile List<PostCommitCacheUpdate> pendingPostCommitCacheUpdates = null;
+	private volatile Set<Key> pendingPostCommitCacheKeys = null;
+	private final Object postCommitCacheUpdateLock = new Object();
+	// Memcache keys are worked out once per Key instance. Queries and gets can come in from several threads.
+	private final Map<Key, String> memcacheKeyCache = Collections.synchronizedMap(new IdentityHashMap<Key, String>());
+	private final AtomicInteger consecutiveSingleGets = new AtomicInteger();
+	
+	private volatile ConcurrentMap<String, Long> kindGenerations = null;
+	private volatile long kindGenerationsFetchedAt = 0;
 	
 	
 	public class EntityNotFetchedWithinTransactionException extends RuntimeException
@@ -109,25 +216,151 @@ public class CachedDatastoreService
 		}
 	}
 	
+	/**
+	 * Represents a datastore load that is currently running in this JVM. Other threads that miss
+	 * on the same key wait for this load to finish instead of starting their own.
+	 */
+	private static class InFlightLoad
+	{
+		private final CountDownLatch done = new CountDownLatch(1);
+		private Entity entity;
+		private boolean notFound = false;
+		private RuntimeException error;
+		
+		void complete(Entity entity)
+		{
+			this.entity = entity;
+			done.countDown();
+		}
+		
+		void completeNotFound()
+		{
+			this.notFound = true;
+			done.countDown();
+		}
+		
+		void fail(RuntimeException error)
+		{
+			this.error = error;
+			done.countDown();
+		}
+		
+		/**
+		 * Waits for the load to finish and returns a copy of the loaded entity.
+		 * 
+		 * @return The entity, or null if the load didn't finish in time.
+		 */
+		Entity await(Key key, long timeoutMs) throws EntityNotFoundException
+		{
+			try
+			{
+				if (done.await(timeoutMs, TimeUnit.MILLISECONDS)==false)
+					return null;
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			
+			if (notFound)
+				throw new EntityNotFoundException(key);
+			if (error!=null)
+				throw error;
+			
+			return entity.clone();
+		}
+	}
+	
+	/**
+	 * Keeps a running memcache hit ratio for one kind. Older samples are decayed so the ratio
+	 * follows changes in the kind's access pattern.
+	 */
+	private static class KindHitRatio
+	{
+		private static final double MAX_SAMPLES = 1000;
+		private static final double MIN_SAMPLES = 20;
+		
+		private double hits = 0;
+		private double samples = 0;
+		
+		synchronized void record(int hitCount, int missCount)
+		{
+			hits += hitCount;
+			samples += hitCount+missCount;
+			if (samples>MAX_SAMPLES)
+			{
+				hits /= 2;
+				samples /= 2;
+			}
+		}
+		
+		/**
+		 * @return The expected miss rate, or 0 if we haven't seen enough lookups to know.
+		 */
+		synchronized double getMissRate()
+		{
+			if (samples<MIN_SAMPLES)
+				return 0;
+			return 1d-(hits/samples);
+		}
+	}
+	
+	/**
+	 * A write-behind put that was sent to the datastore and hasn't been checked yet.
+	 */
+	private static class WriteBehindBatch
+	{
+		final List<Entity> entities;
+		final Set<Key> keys = new HashSet<>();
+		final Future<List<Key>> future;
+		
+		WriteBehindBatch(List<Entity> entities, Future<List<Key>> future)
+		{
+			this.entities = entities;
+			this.future = future;
+			for(Entity entity:entities)
+				keys.add(entity.getKey());
+		}
+	}
+	
+	/**
+	 * An async memcache call that was made to bring the cache up to date after a commit.
+	 */
+	private static class PostCommitCacheUpdate
+	{
+		final Map<String, Key> keysByMemcacheKey;
+		final Future<Set<String>> future;
+		// For puts, the keys that are missing from the future's result were not stored
+		final boolean resultIsStoredKeys;
+		
+		PostCommitCacheUpdate(Map<String, Key> keysByMemcacheKey, Future<Set<String>> future, boolean resultIsStoredKeys)
+		{
+			this.keysByMemcacheKey = keysByMemcacheKey;
+			this.future = future;
+			this.resultIsStoredKeys = resultIsStoredKeys;
+		}
+	}
+	
 	private boolean isEntityFetchedThisRequest(Key entityKey)
 	{
 		if (entitiesFetchedThisRequest==null) return false;
 		
-		return entitiesFetchedThisRequest.containsKey(entityKey.toString());
+		return entitiesFetchedThisRequest.containsKey(entityKey);
 	}
 	
 	private boolean isEntityPutThisRequest(Key entityKey)
 	{
 		if (entitiesPutThisRequest==null) return false;
 		
-		return entitiesPutThisRequest.contains(entityKey.toString());
+		return entitiesPutThisRequest.contains(entityKey);
 	}
 	
 	private void trackFetchedEntityThisRequest(CachedEntity entity)
 	{
 		if (entitiesFetchedThisRequest==null) entitiesFetchedThisRequest = new HashMap<>();
 		
-		entitiesFetchedThisRequest.put(entity.getKey().toString(), entity);
+		entitiesFetchedThisRequest.put(entity.getKey(), entity);
 	}
 	
 	private void trackFetchedEntityThisRequest(Collection<CachedEntity> entities)
@@ -142,15 +375,25 @@ public class CachedDatastoreService
 	{
 		if (entitiesFetchedThisRequest==null) return null;
 		
-		return entitiesFetchedThisRequest.get(entityKey.toString());
+		return entitiesFetchedThisRequest.get(entityKey);
 	}
 	
 	private void trackPutEntityThisRequest(CachedEntity entity)
 	{
 		if (entitiesPutThisRequest==null) entitiesPutThisRequest = new HashSet<>();
 		
-		entitiesPutThisRequest.add(entity.getKey().toString());
-		entity.setAttribute("onePutStacktrace", new RuntimeException("This is the stacktrace for the first place this entity was put."));
+		entitiesPutThisRequest.add(entity.getKey());
+		if (shouldCaptureSinglePutStacktrace())
+			entity.setAttribute("onePutStacktrace", new RuntimeException("This is the stacktrace for the first place this entity was put."));
+	}
+	
+	private boolean shouldCaptureSinglePutStacktrace()
+	{
+		if (singlePutStacktraceMode)
+			return true;
+		
+		int sampleRate = singlePutStacktraceSampleRate;
+		return sampleRate>0 && random.nextInt(sampleRate)==0;
 	}
 	
 	private void trackPutEntityThisRequest(Collection<CachedEntity> entities)
@@ -239,9 +482,17 @@ public class CachedDatastoreService
 		
 		db = DatastoreServiceFactory.getDatastoreService();
 		mc = getMC();
+		asyncDb = DatastoreServiceFactory.getAsyncDatastoreService();
+		asyncMc = MemcacheServiceFactory.getAsyncMemcacheService();
 	}
 	
-	public ConcurrentHashMap<String,InstanceCacheWrapper> getInstanceCache()
+	/**
+	 * The instance cache is shared by every CachedDatastoreService in this JVM. Use the returned 
+	 * cache to adjust its size limits or to read its hit/miss/eviction counters.
+	 * 
+	 * @return
+	 */
+	public InstanceCache getInstanceCache()
 	{
 		return instanceCache;
 	}
@@ -285,174 +536,1586 @@ public class CachedDatastoreService
 		return queryModelCacheEnabled;
 	}
 	
+	/**
+	 * Turns the query cache off (or back on) for this CachedDatastoreService. Writes still invalidate cached 
+	 * queries while it's off.
+	 * 
+	 * @param enabled
+	 */
+	public void setQueryCacheEnabled(boolean enabled)
+	{
+		queryModelCacheEnabled = enabled;
+	}
+	
 	
-	private void putEntityToInstanceCache(Entity entity, Long expiryMs)
+	/**
+	 * Turns on the instance cache (L1) tier for the given kind. Reads of entities of this kind will 
+	 * check the in-process instance cache before going to memcache, and entities that are fetched
+	 * or put will be stored there as well.
+	 * 
+	 * This is best used for read-heavy kinds that rarely change (reference data for example) since
+	 * other appengine instances will not see changes until the cached copy expires.
+	 * 
+	 * @param kind
+	 * @param expiryMs How long an entity is allowed to live in the instance cache.
+	 */
+	public static void enableInstanceCacheForKind(String kind, long expiryMs)
 	{
-		Date expiry = null;
-		if (expiryMs!=null)
-			expiry = new Date(System.currentTimeMillis()+expiryMs);
-		instanceCache.put(mcPrefix+entity.getKey().toString(), new InstanceCacheWrapper(entity, expiry));
+		if (kind==null) throw new IllegalArgumentException("kind cannot be null.");
+		if (expiryMs<=0) throw new IllegalArgumentException("expiryMs must be greater than 0.");
+		setCachePolicy(kind, getCachePolicy(kind).withInstanceCacheTtl(expiryMs));
 	}
 	
-	protected void putEntitiesToInstanceCache(Iterable<Entity> entities, Long expiryMs)
+	public static void disableInstanceCacheForKind(String kind)
 	{
-		Date expiry = null;
-		if (expiryMs!=null)
-			expiry = new Date(System.currentTimeMillis()+expiryMs);
-		
-		Map<String, InstanceCacheWrapper> map = new HashMap<>();
-		for(Entity entity:entities)
-			map.put(mcPrefix+entity.getKey().toString(), new InstanceCacheWrapper(entity, expiry));
-		instanceCache.putAll(map);
+		CachePolicy policy = getCachePolicy(kind);
+		if (policy.usesInstanceCache())
+			setCachePolicy(kind, policy.withTier(CachePolicy.Tier.MEMCACHE));
 	}
 	
-	private void putEntityToMemcache(Entity entity)
+	public static boolean isInstanceCacheEnabledForKind(String kind)
 	{
-		mc.put(mcPrefix+entity.getKey().toString(), entity);		
+		return getCachePolicy(kind).usesInstanceCache();
 	}
 	
-	protected void putEntitiesToMemcache(Iterable<Entity> entities)
+	/**
+	 * Sets how the given kind is cached, overriding whatever the schema declares for it (see CachedSchemaPolicies).
+	 * 
+	 * Switching a kind to a tier that doesn't use memcache doesn't remove what is already in memcache. Deletes still 
+	 * clear memcache for every kind, but entities put while the kind wasn't using memcache will leave stale copies 
+	 * behind if it is switched back.
+	 * 
+	 * @param kind
+	 * @param policy The policy to use, or null to go back to the schema's policy.
+	 */
+	public static void setCachePolicy(String kind, CachePolicy policy)
 	{
-		Map<String, Entity> map = new HashMap<>();
-		for(Entity entity:entities)
-			map.put(mcPrefix+entity.getKey().toString(), entity);
-		mc.putAll(map);
+		if (kind==null) throw new IllegalArgumentException("kind cannot be null.");
+		if (policy==null)
+			cachePolicies.remove(kind);
+		else
+			cachePolicies.put(kind, policy);
 	}
 	
-	private void deleteEntityFromMemcache(Key entityKey)
+	/**
+	 * @param kind
+	 * @return The policy set with setCachePolicy(), otherwise the one the schema declares, otherwise CachePolicy.DEFAULT.
+	 */
+	public static CachePolicy getCachePolicy(String kind)
 	{
-		mc.delete(mcPrefix+entityKey.toString());
+		CachePolicy policy = cachePolicies.get(kind);
+		if (policy!=null)
+			return policy;
+		
+		CachedSchema schema = SchemaInitializer.getSchema();
+		if (schema instanceof CachedSchemaPolicies)
+		{
+			policy = ((CachedSchemaPolicies)schema).getCachePolicy(kind);
+			if (policy!=null)
+				return policy;
+		}
+		
+		return CachePolicy.DEFAULT;
 	}
 	
-	private void deleteEntitiesFromMemcache(Collection<Key> entityKeys)
+	private static boolean isMemcacheEnabledForKind(String kind)
 	{
-		ArrayList<String> list = new ArrayList<>();
-		for(Key key:entityKeys)
-			list.add(mcPrefix+key.toString());
-		mc.deleteAll(list);
+		return getCachePolicy(kind).usesMemcache();
 	}
 	
-	private void markEntityChanged(Entity entity)
+	/**
+	 * @return Every kind that is currently using the instance cache, whether it was set in code or declared by the schema.
+	 */
+	private static Set<String> getInstanceCachedKinds()
 	{
-		if (entity==null)
-			return;
-		
-		// Here we're doing the check to see if we're in a transaction that the entity was fetched while in the transaction and not outside of it.
-		// Note: we're excluding incomplete keys because that means the entity was just created and is not currently in the DB.
-		if (isTransactionActive() && entity.getKey().isComplete()==true && enforceEntityFetchWithinTransaction)
-			if (transactionallyFetchedEntities==null || transactionallyFetchedEntities.contains(entity.getKey())==false)
-				throw new EntityNotFetchedWithinTransactionException(entity);
-		
-		if (transactionallyChangedEntities==null)
-			transactionallyChangedEntities = new HashMap<>();
+		Set<String> kinds = new HashSet<>();
+		for(Map.Entry<String, CachePolicy> entry:cachePolicies.entrySet())
+			if (entry.getValue().usesInstanceCache())
+				kinds.add(entry.getKey());
 		
-		transactionallyChangedEntities.put(entity.getKey(), entity);
-		
-		if (transactionallyDeletedEntities!=null)
-			transactionallyDeletedEntities.remove(entity.getKey());
+		CachedSchema schema = SchemaInitializer.getSchema();
+		if (schema instanceof CachedSchemaPolicies && schema.getKinds()!=null)
+			for(String kind:schema.getKinds())
+				if (cachePolicies.containsKey(kind)==false && isInstanceCacheEnabledForKind(kind))
+					kinds.add(kind);
 		
+		return kinds;
 	}
 	
+	/**
+	 * @param ttlMs
+	 * @return The memcache expiration for the given TTL, or null if it is 0.
+	 */
+	private static Expiration toExpiration(long ttlMs)
+	{
+		if (ttlMs<=0)
+			return null;
+		return Expiration.byDeltaMillis((int)ttlMs);
+	}
 	
-	private void markEntityDeleted(Key key)
+	/**
+	 * Groups the given entities by the memcache TTL of their kind, since a memcache batch put can only 
+	 * have one expiration. Entities of kinds that don't use memcache are left out.
+	 * 
+	 * @param entities
+	 * @return
+	 */
+	private static Map<Long, List<Entity>> groupByMemcacheTtl(Iterable<Entity> entities)
 	{
-		if (key==null)
-			return;
-		if (transactionallyDeletedEntities==null)
-			transactionallyDeletedEntities = new HashSet<>();
-		
-		transactionallyDeletedEntities.add(key);
-		
-		if (transactionallyChangedEntities!=null)
-			transactionallyChangedEntities.remove(key);
-		
+		Map<Long, List<Entity>> groups = new HashMap<>();
+		for(Entity entity:entities)
+		{
+			if (entity==null) continue;
+			CachePolicy policy = getCachePolicy(entity.getKind());
+			if (policy.usesMemcache()==false) continue;
+			
+			List<Entity> group = groups.get(policy.getMemcacheTtlMs());
+			if (group==null)
+			{
+				group = new ArrayList<>();
+				groups.put(policy.getMemcacheTtlMs(), group);
+			}
+			group.add(entity);
+		}
+		return groups;
 	}
-
-	private void clearTransactionEntityTrackers()
+	
+	/**
+	 * Entities in the instance cache are stamped with their kind's generation number which lives in memcache. 
+	 * Every write to a kind bumps the generation so other instances will drop their stale copies. This 
+	 * sets how long a CachedDatastoreService will trust the generation numbers it has already fetched before 
+	 * checking memcache again.
+	 * 
+	 * @param intervalMs
+	 */
+	public static void setKindGenerationCheckInterval(long intervalMs)
 	{
-		if (transactionallyFetchedEntities!=null)
-			transactionallyFetchedEntities.clear();
-		if (transactionallyChangedEntities!=null)
-			transactionallyChangedEntities.clear();
-		if (transactionallyDeletedEntities!=null)
-			transactionallyDeletedEntities.clear();
+		kindGenerationCheckIntervalMs = intervalMs;
 	}
 	
-	public boolean isBulkWriteModeOn()
+	/**
+	 * When an entity isn't in memcache, the request that loads it from the datastore puts a lease marker 
+	 * in its memcache slot. Requests on other instances that miss on the same entity will poll memcache for 
+	 * up to waitMs for the result before giving up and loading the entity themselves.
+	 * 
+	 * @param leaseMs How long the lease marker lives if the loading request never replaces it.
+	 * @param waitMs How long other requests are willing to wait for the loading request.
+	 */
+	public static void setCacheFillLeaseTimeouts(long leaseMs, long waitMs)
 	{
-		return bulkPutMode;
+		if (leaseMs<=0) throw new IllegalArgumentException("leaseMs must be greater than 0.");
+		cacheFillLeaseMs = leaseMs;
+		cacheFillLeaseWaitMs = waitMs;
 	}
 	
 	/**
-	 * When you call this method, the CachedDatastoreService will enter into a mode that 
-	 * will cause calls to .put() to not actually put the entities to the database until
-	 * commitBulkPut() gets called, where it will do a bulk put of all entities to be saved
-	 * all at once instead.
+	 * When the datastore says an entity doesn't exist, a tombstone is put in its memcache slot (and the 
+	 * instance cache if the kind uses it) so repeated lookups for the same missing entity don't go back to the 
+	 * datastore every time. Putting the entity replaces the tombstone. 
+	 * 
+	 * Keep this short if entities are ever created without going through a CachedDatastoreService.
+	 * 
+	 * @param ttlMs How long a tombstone lives. 0 turns negative caching off.
 	 */
-	public void beginBulkWriteMode()
+	public static void setNegativeCacheTtl(long ttlMs)
 	{
-		if (isTransactionActive())
-			throw new IllegalStateException("Cannot use bulk-put-mode while a transaction is active.");
-		if (bulkPutMode)
-			throw new IllegalStateException("Bulk put mode is already active.");
-		
-		bulkPutMode = true;
+		if (ttlMs<0) throw new IllegalArgumentException("ttlMs cannot be negative.");
+		negativeCacheTtlMs = ttlMs;
 	}
 	
-	public int getBulkPutEntityCount()
+	/**
+	 * A cheaper alternative to singlePutStacktraceMode. The stacktrace is only kept for one out of every 
+	 * sampleRate puts, so a duplicate put that keeps happening will eventually be reported along with 
+	 * where it was first put. Duplicate puts are always detected, this only controls the diagnostics.
+	 * 
+	 * @param sampleRate 0 turns sampling off.
+	 */
+	public static void setSinglePutStacktraceSampleRate(int sampleRate)
 	{
-		return entitiesToBulkPut.size();
+		if (sampleRate<0) throw new IllegalArgumentException("sampleRate cannot be negative.");
+		singlePutStacktraceSampleRate = sampleRate;
 	}
 	
-	public void cancelBulkWrite()
+	/**
+	 * Puts of the given kind made outside of a transaction will update memcache (and the instance cache) right 
+	 * away but only be sent to the datastore later, in batches. The buffer is sent off asynchronously 
+	 * whenever it fills up and flushWriteBehindBuffer() must be called at the end of the request to send the rest.
+	 * 
+	 * Writes that fail are reported to onWriteBehindFailure() and are lost, and writes that are still in the 
+	 * buffer when an instance dies are lost as well. Only use this for state that can afford that, like 
+	 * presence or last seen timestamps.
+	 * 
+	 * @param kind
+	 */
+	public static void enableWriteBehindForKind(String kind)
 	{
-		if (isTransactionActive())
-			throw new IllegalStateException("Cannot use bulk-put-mode while a transaction is active.");
-
-		if (entitiesToBulkPut!=null && entitiesToBulkPut.isEmpty()==false)
-			entitiesToBulkPut.clear();
-		
-		bulkPutMode = false;
+		if (kind==null) throw new IllegalArgumentException("kind cannot be null.");
+		setCachePolicy(kind, getCachePolicy(kind).withWriteBehind(true));
 	}
 	
-	public void commitBulkWrite()
+	public static void disableWriteBehindForKind(String kind)
 	{
-		if (isTransactionActive())
-			throw new IllegalStateException("Cannot use bulk-put-mode while a transaction is active.");
+		CachePolicy policy = getCachePolicy(kind);
+		if (policy.isWriteBehind())
+			setCachePolicy(kind, policy.withWriteBehind(false));
+	}
+	
+	public static boolean isWriteBehindEnabledForKind(String kind)
+	{
+		CachePolicy policy = getCachePolicy(kind);
+		return policy.isWriteBehind() && policy.usesMemcache();
+	}
+	
+	/**
+	 * @param size How many distinct entities can be waiting in a request's write-behind buffer before it is sent off to the datastore.
+	 */
+	public static void setWriteBehindBufferSize(int size)
+	{
+		if (size<1) throw new IllegalArgumentException("size must be greater than 0.");
+		writeBehindBufferSize = size;
+	}
+	
+	/**
+	 * Sets how entities are encoded before they are put into memcache. By default a DeflateEntityValueCodec is used,
+	 * which compresses big entities. 
+	 * 
+	 * @param codec The codec to use, or null to store the Entity objects in memcache directly.
+	 */
+	public static void setEntityValueCodec(EntityValueCodec codec)
+	{
+		entityValueCodec = codec;
+	}
+	
+	/**
+	 * @param kind
+	 * @return How big the given kind's entities are once encoded for memcache, or null if none were encoded yet. 
+	 */
+	public static MemcacheValueStats getMemcacheValueStats(String kind)
+	{
+		return memcacheValueStats.get(kind);
+	}
+	
+	/**
+	 * Fetches the current generation of every instance cached kind from memcache in a single call.
+	 */
+	private void refreshKindGenerations()
+	{
+		Set<String> kinds = getInstanceCachedKinds();
+		List<String> generationKeys = new ArrayList<>();
+		for(String kind:kinds)
+			generationKeys.add(KIND_GENERATION_PREFIX+kind);
 		
-		// Notify of the put
-		if (isPutEventHandlerEnabled())
+		Map<String, Object> generationsFromMC = mc.getAll(generationKeys);
+		
+		ConcurrentMap<String, Long> generations = new ConcurrentHashMap<>();
+		for(String kind:kinds)
 		{
-			List<CachedEntity> list = new ArrayList<>(entitiesToBulkPut);
-			for(int i = list.size()-1; i>=0; i--)
+			Long generation = (Long)generationsFromMC.get(KIND_GENERATION_PREFIX+kind);
+			if (generation==null)
 			{
-				CachedEntity entity = list.get(i);
-				if (putEventHandler(entity)==false)
-					entitiesToBulkPut.remove(entity);
+				// The counter was never set or it was evicted. We start it from the current time so it can never 
+				// go back to a generation that an instance already has cached entities for.
+				generation = mc.increment(KIND_GENERATION_PREFIX+kind, 0, System.currentTimeMillis());
 			}
+			generations.put(kind, generation);
 		}
 		
+		kindGenerations = generations;
+		kindGenerationsFetchedAt = System.currentTimeMillis();
+	}
+	
+	private Long getKindGeneration(String kind)
+	{
+		if (isInstanceCacheEnabledForKind(kind)==false)
+			return null;
 		
-		 // Look for any incomplete keys and add them to the pile we need to complete before proceeding
-		Map<String, List<CachedEntity>> incompleteKeyEntities = new HashMap<String, List<CachedEntity>>();
-		if (entitiesToBulkPut.isEmpty()==false)
-			for(CachedEntity e:entitiesToBulkPut)
-				if (e.getKey().isComplete()==false)
-				{
-					List<CachedEntity> list = incompleteKeyEntities.get(e.getKind());
-					if (list==null)
-					{
-						list = new ArrayList<CachedEntity>();
-						incompleteKeyEntities.put(e.getKind(), list);
-					}
-					list.add(e);
-				}
-		
-		if (incompleteKeyEntities.isEmpty()==false)
+		Map<String, Long> generations = kindGenerations;
+		if (generations==null || generations.containsKey(kind)==false || System.currentTimeMillis()-kindGenerationsFetchedAt>kindGenerationCheckIntervalMs)
 		{
-			// Now that we found incomplete keys, we will complete them but keep track of the original keys
-			Map<Key, Key> oldKeyToNewKeyMap = new HashMap<Key, Key>();
-			for(String kind:incompleteKeyEntities.keySet())
+			refreshKindGenerations();
+			generations = kindGenerations;
+		}
+		
+		return generations.get(kind);
+	}
+	
+	/**
+	 * Invalidates everything other instances have cached for the given kinds. Only kinds that are 
+	 * using the instance cache are bumped. The given query cache counters are incremented in the same 
+	 * memcache call, so a write costs one round trip even when a kind uses both caches (and KIND_GENERATION 
+	 * query caching shares the generation counter so it's only incremented once).
+	 * 
+	 * This must be called after the changes are already in memcache, otherwise another instance could
+	 * pick up the new generation and the old entity at the same time.
+	 * 
+	 * @param kinds
+	 * @param queryCacheCounters
+	 */
+	private void bumpKindGenerations(Collection<String> kinds, Set<String> queryCacheCounters)
+	{
+		Set<String> counterKeys = new HashSet<>(queryCacheCounters);
+		for(String kind:kinds)
+			if (isInstanceCacheEnabledForKind(kind))
+				counterKeys.add(KIND_GENERATION_PREFIX+kind);
+		
+		if (counterKeys.isEmpty())
+			return;
+		
+		// Counters that don't exist are left alone. Nothing can be stamped with a missing query cache counter, and 
+		// a missing generation is started from the current time by the next instance that reads it (see refreshKindGenerations()).
+		Map<String, Long> newValues = mc.incrementAll(counterKeys, 1);
+		
+		Map<String, Long> generations = kindGenerations;
+		if (generations!=null)
+			for(String counterKey:newValues.keySet())
+				if (counterKey.startsWith(KIND_GENERATION_PREFIX) && newValues.get(counterKey)!=null)
+					generations.put(counterKey.substring(KIND_GENERATION_PREFIX.length()), newValues.get(counterKey));
+	}
+	
+	private void bumpKindGenerationsForEntities(Iterable<Entity> entities, Set<String> queryCacheCounters)
+	{
+		Set<String> kinds = new HashSet<>();
+		for(Entity entity:entities)
+			kinds.add(entity.getKind());
+		bumpKindGenerations(kinds, queryCacheCounters);
+	}
+	
+	private void bumpKindGenerationsForKeys(Iterable<Key> keys, Set<String> queryCacheCounters)
+	{
+		Set<String> kinds = new HashSet<>();
+		for(Key key:keys)
+			kinds.add(key.getKind());
+		bumpKindGenerations(kinds, queryCacheCounters);
+	}
+	
+	private void putEntityToInstanceCache(Entity entity, Long expiryMs, Long generation)
+	{
+		Date expiry = null;
+		if (expiryMs!=null)
+			expiry = new Date(System.currentTimeMillis()+expiryMs);
+		// We store a copy so changes made to the caller's entity don't leak into the cache
+		instanceCache.put(toMemcacheKey(entity.getKey()), new InstanceCacheWrapper(entity.clone(), expiry, generation));
+	}
+	
+	/**
+	 * Reads the current generation of the given kinds. Anything read from memcache or the datastore must be 
+	 * stamped with the generation from before the read. If another instance writes in between, the entity then 
+	 * ends up under the old generation and is dropped, instead of a stale entity ending up under the new one.
+	 * 
+	 * @param kinds
+	 * @return The generations by kind. Kinds that don't use the instance cache are left out.
+	 */
+	private Map<String, Long> readKindGenerations(Iterable<String> kinds)
+	{
+		Map<String, Long> generations = new HashMap<>();
+		for(String kind:kinds)
+		{
+			if (generations.containsKey(kind)) continue;
+			Long generation = getKindGeneration(kind);
+			if (generation!=null)
+				generations.put(kind, generation);
+		}
+		return generations;
+	}
+	
+	private Map<String, Long> readKindGenerationsForKeys(Iterable<Key> keys)
+	{
+		Set<String> kinds = new HashSet<>();
+		for(Key key:keys)
+			if (key!=null)
+				kinds.add(key.getKind());
+		return readKindGenerations(kinds);
+	}
+	
+	protected void putEntitiesToInstanceCache(Iterable<Entity> entities, Long expiryMs)
+	{
+		Date expiry = null;
+		if (expiryMs!=null)
+			expiry = new Date(System.currentTimeMillis()+expiryMs);
+		
+		Map<String, InstanceCacheWrapper> map = new HashMap<>();
+		for(Entity entity:entities)
+			map.put(toMemcacheKey(entity.getKey()), new InstanceCacheWrapper(entity.clone(), expiry, getKindGeneration(entity.getKind())));
+		instanceCache.putAll(map);
+	}
+	
+	/**
+	 * Puts entities we just wrote into the instance cache, but only the ones whose kind has the 
+	 * instance cache enabled. They are stamped with the current generation.
+	 * 
+	 * @param entities
+	 */
+	private void updateInstanceCache(Iterable<Entity> entities)
+	{
+		updateInstanceCache(entities, null);
+	}
+	
+	private void updateInstanceCache(Entity entity)
+	{
+		updateInstanceCache(Arrays.asList(entity));
+	}
+	
+	/**
+	 * Puts the given entities into the instance cache, but only the ones whose kind has the 
+	 * instance cache enabled.
+	 * 
+	 * @param entities
+	 * @param generations The generations read before the entities were read, see readKindGenerations(). If 
+	 * null, the current generation is used which is only safe for entities we wrote ourselves.
+	 */
+	private void updateInstanceCache(Iterable<Entity> entities, Map<String, Long> generations)
+	{
+		for(Entity entity:entities)
+		{
+			if (entity==null) continue;
+			CachePolicy policy = getCachePolicy(entity.getKind());
+			if (policy.usesInstanceCache()==false) continue;
+			
+			Long generation = generations==null ? getKindGeneration(entity.getKind()) : generations.get(entity.getKind());
+			if (generation!=null)
+				putEntityToInstanceCache(entity, policy.getInstanceCacheTtlMs(), generation);
+		}
+	}
+	
+	private void deleteEntitiesFromInstanceCache(Collection<Key> entityKeys)
+	{
+		for(Key key:entityKeys)
+			if (isInstanceCacheEnabledForKind(key.getKind()))
+				instanceCache.remove(toMemcacheKey(key));
+	}
+	
+	/**
+	 * Returns a copy of the entity stored in the instance cache, a MemcacheTombstone if the entity is known
+	 * not to exist, or null if the entity's kind doesn't use the instance cache or it isn't in there.
+	 * 
+	 * @param entityKey
+	 * @param cacheKey The entity's memcache key
+	 * @return
+	 */
+	private Object getFromInstanceCache(Key entityKey, String cacheKey)
+	{
+		if (isInstanceCacheEnabledForKind(entityKey.getKind())==false)
+			return null;
+		
+		InstanceCacheWrapper wrapper = instanceCache.get(cacheKey);
+		boolean isEntity = wrapper!=null && wrapper.data instanceof Entity && ((Entity)wrapper.data).getKey().equals(entityKey);
+		if (wrapper==null || (isEntity==false && isTombstone(wrapper.data, entityKey)==false))
+			return null;
+		
+		// If the kind was written to since this entity was cached (possibly by another instance), the copy we have may be stale
+		Long generation = getKindGeneration(entityKey.getKind());
+		if (generation==null || generation.equals(wrapper.generation)==false)
+		{
+			instanceCache.remove(cacheKey);
+			return null;
+		}
+		
+		if (wrapper.data instanceof MemcacheTombstone)
+			return wrapper.data;
+		
+		// Every caller gets their own copy since CachedEntity modifies the entity directly
+		return ((Entity)wrapper.data).clone();
+	}
+	
+	/**
+	 * Remembers that the given entities don't exist in the instance cache, but only for kinds that use it.
+	 * 
+	 * @param entityKeys
+	 * @param generations The generations read before the datastore or memcache said these don't exist, see readKindGenerations().
+	 */
+	private void putTombstonesToInstanceCache(Collection<Key> entityKeys, Map<String, Long> generations)
+	{
+		if (negativeCacheTtlMs<=0)
+			return;
+		
+		for(Key key:entityKeys)
+		{
+			CachePolicy policy = getCachePolicy(key.getKind());
+			Long generation = generations.get(key.getKind());
+			if (policy.usesInstanceCache()==false || generation==null) continue;
+			
+			Date expiry = new Date(System.currentTimeMillis()+Math.min(policy.getInstanceCacheTtlMs(), negativeCacheTtlMs));
+			instanceCache.put(toMemcacheKey(key), new InstanceCacheWrapper(new MemcacheTombstone(key), expiry, generation));
+		}
+	}
+	
+	/**
+	 * Returns the memcache key that the given entity key's entity is stored under. This is also
+	 * the key used for the instance cache.
+	 * 
+	 * @param entityKey
+	 * @return
+	 */
+	private String toMemcacheKey(Key entityKey)
+	{
+		// Incomplete keys get their id assigned in place when they are put, so they can't be cached by instance
+		boolean cacheable = entityKey.isComplete();
+		if (cacheable)
+		{
+			String cached = memcacheKeyCache.get(entityKey);
+			if (cached!=null) return cached;
+		}
+		
+		String mcKey = mcPrefix+DBUtils.toCompactKeyString(entityKey);
+		
+		// Really deep or long keys are hashed so we stay well under memcache's key length limit. Hash collisions are 
+		// caught when reading since we always check that the entity we got back has the key we asked for.
+		if (mcKey.length()>MAX_UNHASHED_MEMCACHE_KEY_LENGTH)
+			mcKey = mcPrefix+"#"+hashMemcacheKey(mcKey);
+		
+		if (cacheable)
+		{
+			synchronized(memcacheKeyCache)
+			{
+				if (memcacheKeyCache.size()>=MAX_MEMCACHE_KEY_CACHE_SIZE)
+					memcacheKeyCache.clear();
+				memcacheKeyCache.put(entityKey, mcKey);
+			}
+		}
+		
+		return mcKey;
+	}
+	
+	static String hashMemcacheKey(String mcKey)
+	{
+		try
+		{
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			return Base64.encodeBase64URLSafeString(md5.digest(mcKey.getBytes("UTF-8")));
+		}
+		catch (NoSuchAlgorithmException | UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Memcache entity slots can contain markers (like a MemcacheLease) instead of an entity. This 
+	 * returns the entity stored in the slot, or null if there isn't one.
+	 * 
+	 * Since long memcache keys are hashed, the entity is also checked against the key we were
+	 * looking for. Anything else is treated as a miss.
+	 * 
+	 * @param memcacheValue
+	 * @param expectedKey
+	 * @return
+	 */
+	private Entity toEntity(Object memcacheValue, Key expectedKey)
+	{
+		Entity entity = null;
+		if (memcacheValue instanceof Entity)
+			entity = (Entity)memcacheValue;
+		else if (memcacheValue instanceof EncodedEntityValue)
+			entity = decodeMemcacheValue((EncodedEntityValue)memcacheValue, expectedKey);
+		
+		if (entity!=null && entity.getKey().equals(expectedKey))
+			return entity;
+		
+		return null;
+	}
+	
+	/**
+	 * The chunks of an oversized memcache value that are only written once the value itself made it into 
+	 * memcache, see toMemcacheValue().
+	 */
+	private static class PendingMemcacheChunks
+	{
+		final Map<String, Object> chunks;
+		final Expiration expiration;
+		
+		PendingMemcacheChunks(Map<String, Object> chunks, Expiration expiration)
+		{
+			this.chunks = chunks;
+			this.expiration = expiration;
+		}
+	}
+	
+	/**
+	 * Turns an entity into the value that is stored in its memcache slot using the current EntityValueCodec.
+	 * If the encoded entity is too big for a single memcache value, its chunks are written to memcache right 
+	 * away and the returned value only points to them.
+	 * 
+	 * @param mcKey The entity's memcache key
+	 * @param entity
+	 * @param expiration The expiration the value will be put with. The chunks get the same one.
+	 * @return
+	 */
+	private Object toMemcacheValue(String mcKey, Entity entity, Expiration expiration)
+	{
+		return toMemcacheValue(mcKey, entity, expiration, null);
+	}
+	
+	/**
+	 * @param mcKey
+	 * @param entity
+	 * @param expiration
+	 * @param pendingChunks If not null, the chunks of an oversized value are added to this instead of being written. This is 
+	 * for fills that can lose their race, they write the chunks with writePendingChunks() once they know they won.
+	 * @return
+	 */
+	private Object toMemcacheValue(String mcKey, Entity entity, Expiration expiration, Map<String, PendingMemcacheChunks> pendingChunks)
+	{
+		EntityValueCodec codec = entityValueCodec;
+		if (codec==null)
+			return entity;
+		
+		byte[] data;
+		try
+		{
+			data = codec.encode(entity);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Unable to encode "+entity.getKey()+" for memcache.", e);
+		}
+		
+		boolean chunked = data.length>MAX_MEMCACHE_VALUE_BYTES;
+		recordMemcacheValueSize(entity.getKind(), data.length, chunked);
+		if (chunked==false)
+			return new EncodedEntityValue(data);
+		
+		long chunkSetId = random.nextLong();
+		int chunkCount = (data.length+MAX_MEMCACHE_VALUE_BYTES-1)/MAX_MEMCACHE_VALUE_BYTES;
+		Map<String, Object> chunks = new HashMap<>();
+		for(int i = 0; i<chunkCount; i++)
+		{
+			byte[] chunkData = Arrays.copyOfRange(data, i*MAX_MEMCACHE_VALUE_BYTES, Math.min(data.length, (i+1)*MAX_MEMCACHE_VALUE_BYTES));
+			chunks.put(toMemcacheChunkKey(mcKey, chunkSetId, i), new EncodedEntityValue(chunkSetId, 0, chunkData));
+		}
+		
+		// Normally the chunks go in first so a reader that sees the new value can always find them. Until a pending 
+		// fill writes its chunks, readers just see a cache miss.
+		if (pendingChunks!=null)
+			pendingChunks.put(mcKey, new PendingMemcacheChunks(chunks, expiration));
+		else
+			mc.putAll(chunks, expiration);
+		
+		return new EncodedEntityValue(chunkSetId, chunkCount, null);
+	}
+	
+	/**
+	 * Writes the pending chunks of the values that made it into memcache. The chunks of values that lost 
+	 * their race are dropped.
+	 * 
+	 * @param pendingChunks
+	 * @param storedKeys
+	 */
+	private void writePendingChunks(Map<String, PendingMemcacheChunks> pendingChunks, Collection<String> storedKeys)
+	{
+		for(String mcKey:storedKeys)
+		{
+			PendingMemcacheChunks pending = pendingChunks.get(mcKey);
+			if (pending!=null)
+				mc.putAll(pending.chunks, pending.expiration);
+		}
+	}
+	
+	private static String toMemcacheChunkKey(String mcKey, long chunkSetId, int chunkIndex)
+	{
+		return mcKey+"#"+Long.toString(chunkSetId, 36)+"-"+chunkIndex;
+	}
+	
+	/**
+	 * Turns a value written by toMemcacheValue() back into an entity. 
+	 * 
+	 * @param value
+	 * @param entityKey
+	 * @return The entity, or null if the value (or one of its chunks) couldn't be read.
+	 */
+	private Entity decodeMemcacheValue(EncodedEntityValue value, Key entityKey)
+	{
+		// Other instances may still be encoding values even if we aren't
+		EntityValueCodec codec = entityValueCodec!=null ? entityValueCodec : DEFAULT_ENTITY_VALUE_CODEC;
+		
+		byte[] data = value.data;
+		if (value.isChunked())
+		{
+			data = readMemcacheValueChunks(toMemcacheKey(entityKey), value);
+			if (data==null)
+			{
+				discardUnreadableMemcacheValue(toMemcacheKey(entityKey), value);
+				return null;
+			}
+		}
+		
+		try
+		{
+			return codec.decode(data);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			log.log(Level.FINE, "Unable to decode the memcache value for "+entityKey+", it will be treated as a cache miss.", e);
+			discardUnreadableMemcacheValue(toMemcacheKey(entityKey), value);
+			return null;
+		}
+	}
+	
+	/**
+	 * Removes a value we couldn't read from its memcache slot. Fills only go into empty slots (or slots holding 
+	 * their lease), so left alone the slot would never be repaired and every read would miss until the entity is put again.
+	 * 
+	 * @param mcKey
+	 * @param value The value we couldn't read. The slot is only cleared if it still holds this value.
+	 */
+	private void discardUnreadableMemcacheValue(String mcKey, EncodedEntityValue value)
+	{
+		try
+		{
+			IdentifiableValue current = mc.getIdentifiable(mcKey);
+			if (current==null || (current.getValue() instanceof EncodedEntityValue)==false)
+				return;
+			
+			EncodedEntityValue currentValue = (EncodedEntityValue)current.getValue();
+			boolean sameValue = value.isChunked() ? currentValue.chunkSetId==value.chunkSetId : Arrays.equals(currentValue.data, value.data);
+			if (sameValue)
+			{
+				// Replacing it with an already expired lease empties the slot, but only if nobody wrote to it in the meantime
+				mc.putIfUntouched(mcKey, current, new MemcacheLease(), Expiration.byDeltaMillis(1));
+			}
+		}
+		catch(RuntimeException e)
+		{
+			log.log(Level.FINE, "Unable to discard the unreadable memcache value for "+mcKey+".", e);
+		}
+	}
+	
+	private byte[] readMemcacheValueChunks(String mcKey, EncodedEntityValue header)
+	{
+		List<String> chunkKeys = new ArrayList<>(header.chunkCount);
+		for(int i = 0; i<header.chunkCount; i++)
+			chunkKeys.add(toMemcacheChunkKey(mcKey, header.chunkSetId, i));
+		
+		Map<String, Object> chunks = mc.getAll(chunkKeys);
+		
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for(String chunkKey:chunkKeys)
+		{
+			Object chunk = chunks.get(chunkKey);
+			// If any chunk was evicted the whole value is gone
+			if ((chunk instanceof EncodedEntityValue)==false || ((EncodedEntityValue)chunk).chunkSetId!=header.chunkSetId || ((EncodedEntityValue)chunk).data==null)
+				return null;
+			
+			byte[] chunkData = ((EncodedEntityValue)chunk).data;
+			data.write(chunkData, 0, chunkData.length);
+		}
+		return data.toByteArray();
+	}
+	
+	private static void recordMemcacheValueSize(String kind, int encodedBytes, boolean chunked)
+	{
+		MemcacheValueStats stats = memcacheValueStats.get(kind);
+		if (stats==null)
+		{
+			memcacheValueStats.putIfAbsent(kind, new MemcacheValueStats());
+			stats = memcacheValueStats.get(kind);
+		}
+		stats.record(encodedBytes, chunked);
+	}
+	
+	/**
+	 * @param memcacheValue
+	 * @param expectedKey
+	 * @return True if the memcache value says the entity with the given key doesn't exist.
+	 */
+	private boolean isTombstone(Object memcacheValue, Key expectedKey)
+	{
+		return memcacheValue instanceof MemcacheTombstone && ((MemcacheTombstone)memcacheValue).key.equals(expectedKey);
+	}
+	
+	/**
+	 * Loads an entity from the datastore after a memcache miss and puts it into memcache. 
+	 * 
+	 * Concurrent misses for the same key within this JVM share a single load. Across instances, a 
+	 * short lease is put in the entity's memcache slot so other instances wait for this load instead of 
+	 * also going to the datastore.
+	 * 
+	 * @param entityKey
+	 * @return
+	 * @throws EntityNotFoundException
+	 */
+	private Entity loadEntityOnCacheMiss(Key entityKey) throws EntityNotFoundException
+	{
+		InFlightLoad load = new InFlightLoad();
+		InFlightLoad existingLoad = inFlightLoads.putIfAbsent(entityKey, load);
+		if (existingLoad!=null)
+		{
+			Entity entity = existingLoad.await(entityKey, cacheFillLeaseMs);
+			if (entity!=null)
+				return entity;
+			
+			// The other load is taking way too long, we'll just do it ourselves
+			return db.get(entityKey);
+		}
+		
+		try
+		{
+			Entity entity = loadEntityWithLease(entityKey, true);
+			load.complete(entity.clone());
+			return entity;
+		}
+		catch(EntityNotFoundException e)
+		{
+			load.completeNotFound();
+			throw e;
+		}
+		catch(RuntimeException e)
+		{
+			load.fail(e);
+			throw e;
+		}
+		finally
+		{
+			inFlightLoads.remove(entityKey, load);
+		}
+	}
+	
+	/**
+	 * Loads an entity from the datastore and fills its memcache slot, but only if this request holds the 
+	 * fill lease for the slot. 
+	 * 
+	 * The lease is taken before the datastore is read and the fill is a compare-and-set against the lease.
+	 * Any write that happens in between replaces or deletes the lease which makes our fill fail, so an old 
+	 * value can never be written over a newer one.
+	 * 
+	 * @param entityKey
+	 * @param waitForOtherLoads If another request holds the lease, poll memcache for its result before going to the datastore. This must be false inside of transactions.
+	 * @return
+	 * @throws EntityNotFoundException
+	 */
+	private Entity loadEntityWithLease(Key entityKey, boolean waitForOtherLoads) throws EntityNotFoundException
+	{
+		CachePolicy policy = getCachePolicy(entityKey.getKind());
+		if (policy.usesMemcache()==false)
+			return db.get(entityKey);
+		
+		String mcKey = toMemcacheKey(entityKey);
+		
+		IdentifiableValue lease = acquireFillLease(mcKey);
+		if (lease==null && waitForOtherLoads)
+		{
+			// Someone else is already loading this entity (or just finished), so poll for their result for a little while
+			long giveUpAt = System.currentTimeMillis()+cacheFillLeaseWaitMs;
+			while(System.currentTimeMillis()<giveUpAt)
+			{
+				Object value = mc.get(mcKey);
+				Entity polledEntity = toEntity(value, entityKey);
+				if (polledEntity!=null)
+					return polledEntity;
+				if (isTombstone(value, entityKey))
+					throw new EntityNotFoundException(entityKey);
+				if ((value instanceof MemcacheLease)==false)
+				{
+					// The lease is gone without being replaced with an entity, so we'll load it ourselves
+					lease = acquireFillLease(mcKey);
+					break;
+				}
+				
+				try
+				{
+					Thread.sleep(cacheFillLeasePollMs);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		
+		Entity entity;
+		try
+		{
+			entity = db.get(entityKey);
+		}
+		catch(EntityNotFoundException e)
+		{
+			if (lease!=null && negativeCacheTtlMs>0)
+				mc.putIfUntouched(mcKey, lease, new MemcacheTombstone(entityKey), Expiration.byDeltaMillis((int)negativeCacheTtlMs));
+			else if (lease!=null)
+				releaseFillLease(mcKey, lease);
+			throw e;
+		}
+		catch(RuntimeException e)
+		{
+			if (lease!=null)
+				releaseFillLease(mcKey, lease);
+			throw e;
+		}
+		
+		if (lease!=null)
+		{
+			Expiration expiration = toExpiration(policy.getMemcacheTtlMs());
+			Map<String, PendingMemcacheChunks> pendingChunks = new HashMap<>();
+			if (mc.putIfUntouched(mcKey, lease, toMemcacheValue(mcKey, entity, expiration, pendingChunks), expiration))
+				writePendingChunks(pendingChunks, Arrays.asList(mcKey));
+		}
+		return entity;
+	}
+	
+	/**
+	 * Takes our lease back out of its memcache slot when we have nothing to fill it with. Otherwise everyone
+	 * else who misses on the slot would wait for a fill that never comes until the lease expires.
+	 * 
+	 * @param mcKey
+	 * @param lease
+	 */
+	private void releaseFillLease(String mcKey, IdentifiableValue lease)
+	{
+		try
+		{
+			// Only our own lease is removed. A write landing between the check and the delete just costs a cache miss.
+			IdentifiableValue current = mc.getIdentifiable(mcKey);
+			if (current!=null && lease.getValue().equals(current.getValue()))
+				mc.delete(mcKey);
+		}
+		catch(RuntimeException e)
+		{
+			log.log(Level.WARNING, "Unable to release the fill lease for "+mcKey+", it will expire on its own.", e);
+		}
+	}
+	
+	/**
+	 * Puts a new lease into the given memcache slot if the slot is empty.
+	 * 
+	 * @param mcKey
+	 * @return The lease, to be used with putIfUntouched(), or null if the slot wasn't empty.
+	 */
+	private IdentifiableValue acquireFillLease(String mcKey)
+	{
+		Map<String, IdentifiableValue> leases = acquireFillLeases(Arrays.asList(mcKey));
+		return leases.get(mcKey);
+	}
+	
+	/**
+	 * Batch version of acquireFillLease(). 
+	 * 
+	 * @param mcKeys
+	 * @return The leases we hold keyed by memcache key. Slots that weren't empty are not included.
+	 */
+	private Map<String, IdentifiableValue> acquireFillLeases(Collection<String> mcKeys)
+	{
+		if (mcKeys.size()>MAX_MEMCACHE_BATCH)
+		{
+			Map<String, IdentifiableValue> leases = new HashMap<>();
+			for(List<String> chunk:ChunkedBatchOperation.split(new ArrayList<>(mcKeys), MAX_MEMCACHE_BATCH, 0))
+				leases.putAll(acquireFillLeases(chunk));
+			return leases;
+		}
+		
+		Map<String, MemcacheLease> newLeases = new HashMap<>();
+		for(String mcKey:mcKeys)
+			newLeases.put(mcKey, new MemcacheLease());
+		
+		Set<String> addedKeys = mc.putAll(newLeases, Expiration.byDeltaMillis((int)cacheFillLeaseMs), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+		if (addedKeys.isEmpty())
+			return new HashMap<>();
+		
+		Map<String, IdentifiableValue> leases = mc.getIdentifiables(addedKeys);
+		
+		// A writer may have already replaced our lease between the add and the getIdentifiables
+		Iterator<Map.Entry<String, IdentifiableValue>> iterator = leases.entrySet().iterator();
+		while(iterator.hasNext())
+		{
+			Map.Entry<String, IdentifiableValue> lease = iterator.next();
+			if (newLeases.get(lease.getKey()).equals(lease.getValue().getValue())==false)
+				iterator.remove();
+		}
+		
+		return leases;
+	}
+	
+	/**
+	 * Fills the memcache slots we hold leases for with the given entities, and with tombstones for the 
+	 * entities the datastore didn't have. Slots that were written to since the lease was taken are left alone.
+	 * 
+	 * @param leases
+	 * @param entities
+	 * @param missingKeys
+	 */
+	private void fillMemcacheWithLeases(Map<String, IdentifiableValue> leases, Iterable<Entity> entities, Collection<Key> missingKeys)
+	{
+		if (leases.isEmpty())
+			return;
+		
+		Map<String, CasValues> fills = new HashMap<>();
+		Map<String, PendingMemcacheChunks> pendingChunks = new HashMap<>();
+		for(Entity entity:entities)
+		{
+			String mcKey = toMemcacheKey(entity.getKey());
+			IdentifiableValue lease = leases.get(mcKey);
+			if (lease!=null)
+			{
+				Expiration expiration = toExpiration(getCachePolicy(entity.getKind()).getMemcacheTtlMs());
+				fills.put(mcKey, new CasValues(lease, toMemcacheValue(mcKey, entity, expiration, pendingChunks), expiration));
+			}
+		}
+		
+		if (negativeCacheTtlMs>0)
+		{
+			for(Key key:missingKeys)
+			{
+				String mcKey = toMemcacheKey(key);
+				IdentifiableValue lease = leases.get(mcKey);
+				if (lease!=null)
+					fills.put(mcKey, new CasValues(lease, new MemcacheTombstone(key), Expiration.byDeltaMillis((int)negativeCacheTtlMs)));
+			}
+		}
+		
+		if (fills.size()>MAX_MEMCACHE_BATCH)
+		{
+			List<String> fillKeys = new ArrayList<>(fills.keySet());
+			for(List<String> chunk:ChunkedBatchOperation.split(fillKeys, MAX_MEMCACHE_BATCH, 0))
+			{
+				Map<String, CasValues> chunkFills = new HashMap<>();
+				for(String mcKey:chunk)
+					chunkFills.put(mcKey, fills.get(mcKey));
+				writePendingChunks(pendingChunks, mc.putIfUntouched(chunkFills));
+			}
+		}
+		else if (fills.isEmpty()==false)
+			writePendingChunks(pendingChunks, mc.putIfUntouched(fills));
+	}
+	
+	private void putEntityToMemcache(Entity entity)
+	{
+		CachePolicy policy = getCachePolicy(entity.getKind());
+		if (policy.usesMemcache()==false)
+			return;
+		
+		awaitPostCommitCacheUpdates();
+		String mcKey = toMemcacheKey(entity.getKey());
+		Expiration expiration = toExpiration(policy.getMemcacheTtlMs());
+		mc.put(mcKey, toMemcacheValue(mcKey, entity, expiration), expiration);
+	}
+	
+	/**
+	 * Puts the given entities into memcache, following the cache policy of each entity's kind.
+	 * 
+	 * @param entities
+	 */
+	protected void putEntitiesToMemcache(Iterable<Entity> entities)
+	{
+		// An older async update landing after this one would leave a stale entity behind
+		awaitPostCommitCacheUpdates();
+		
+		for(Map.Entry<Long, List<Entity>> group:groupByMemcacheTtl(entities).entrySet())
+			putEntitiesToMemcache(group.getValue(), toExpiration(group.getKey()));
+	}
+	
+	private void putEntitiesToMemcache(List<Entity> entityList, final Expiration expiration)
+	{
+		List<List<Entity>> chunks = ChunkedBatchOperation.split(entityList, MAX_MEMCACHE_BATCH, MAX_MEMCACHE_BATCH_BYTES);
+		if (chunks.size()<=1)
+		{
+			Map<String, Object> map = new HashMap<>();
+			for(Entity entity:entityList)
+			{
+				String mcKey = toMemcacheKey(entity.getKey());
+				map.put(mcKey, toMemcacheValue(mcKey, entity, expiration));
+			}
+			mc.putAll(map, expiration);
+			return;
+		}
+		
+		new ChunkedBatchOperation<Entity, Void>(maxConcurrentBatchRpcs)
+		{
+			@Override
+			protected Future<Void> startChunk(List<Entity> chunk)
+			{
+				Map<String, Object> map = new HashMap<>();
+				for(Entity entity:chunk)
+				{
+					String mcKey = toMemcacheKey(entity.getKey());
+					map.put(mcKey, toMemcacheValue(mcKey, entity, expiration));
+				}
+				return asyncMc.putAll(map, expiration);
+			}
+		}.execute(chunks);
+	}
+	
+	/**
+	 * Sets how many chunks of an oversized batch get/put/delete are allowed to be in flight at once.
+	 * 
+	 * @param maxConcurrent
+	 */
+	public static void setMaxConcurrentBatchRpcs(int maxConcurrent)
+	{
+		if (maxConcurrent<1) throw new IllegalArgumentException("maxConcurrent must be greater than 0.");
+		maxConcurrentBatchRpcs = maxConcurrent;
+	}
+	
+	/**
+	 * A datastore batch get that is split into parallel chunks if there are too many keys for one call.
+	 * 
+	 * @param keys
+	 * @return
+	 */
+	private Map<Key, Entity> getFromDatastore(List<Key> keys)
+	{
+		if (keys.size()<=MAX_DATASTORE_GET_BATCH)
+			return db.get(keys);
+		
+		return ChunkedBatchOperation.await(startDatastoreGet(keys));
+	}
+	
+	/**
+	 * Starts an async datastore batch get, split into parallel chunks if there are too many keys for one call.
+	 * 
+	 * @param keys
+	 * @return
+	 */
+	private Future<Map<Key, Entity>> startDatastoreGet(List<Key> keys)
+	{
+		List<List<Key>> chunks = ChunkedBatchOperation.split(keys, MAX_DATASTORE_GET_BATCH, 0);
+		if (chunks.size()<=1)
+			return asyncDb.get(keys);
+		
+		List<Future<Map<Key, Entity>>> futures = new ArrayList<>();
+		for(List<Key> chunk:chunks)
+			futures.add(asyncDb.get(chunk));
+		return new MergedMapFuture<Key, Entity>(futures);
+	}
+	
+	/**
+	 * Starts an async memcache getAll, split into parallel chunks if there are too many keys for one call.
+	 * 
+	 * @param mcKeys
+	 * @return
+	 */
+	private Future<Map<String, Object>> startMemcacheGetAll(List<String> mcKeys)
+	{
+		List<List<String>> chunks = ChunkedBatchOperation.split(mcKeys, MAX_MEMCACHE_BATCH, 0);
+		if (chunks.size()<=1)
+			return asyncMc.getAll(mcKeys);
+		
+		List<Future<Map<String, Object>>> futures = new ArrayList<>();
+		for(List<String> chunk:chunks)
+			futures.add(asyncMc.getAll(chunk));
+		return new MergedMapFuture<String, Object>(futures);
+	}
+	
+	/**
+	 * A datastore batch put that is split into parallel chunks if the entities don't fit into one call.
+	 * 
+	 * @param entities
+	 * @return The keys of the put entities in the same order as the entities.
+	 */
+	private List<Key> putToDatastore(List<Entity> entities)
+	{
+		List<List<Entity>> chunks = ChunkedBatchOperation.split(entities, MAX_DATASTORE_PUT_BATCH, MAX_DATASTORE_PUT_BATCH_BYTES);
+		if (chunks.size()<=1)
+			return db.put(entities);
+		
+		List<List<Key>> chunkResults = new ChunkedBatchOperation<Entity, List<Key>>(maxConcurrentBatchRpcs)
+		{
+			@Override
+			protected Future<List<Key>> startChunk(List<Entity> chunk)
+			{
+				return asyncDb.put(chunk);
+			}
+		}.execute(chunks);
+		
+		List<Key> keys = new ArrayList<>();
+		for(List<Key> chunkResult:chunkResults)
+			keys.addAll(chunkResult);
+		return keys;
+	}
+	
+	/**
+	 * Bulk write version of putToDatastore(), see flushBulkWrite().
+	 * 
+	 * @param entities
+	 * @param summary
+	 * @return The entities that were not written because their chunk failed.
+	 */
+	private List<Entity> putToDatastore(List<Entity> entities, BulkWriteSummary summary)
+	{
+		List<List<Entity>> chunks = ChunkedBatchOperation.split(entities, MAX_DATASTORE_PUT_BATCH, MAX_DATASTORE_PUT_BATCH_BYTES);
+		List<ChunkedBatchOperation.ChunkOutcome<Entity, List<Key>>> outcomes = new ChunkedBatchOperation<Entity, List<Key>>(maxConcurrentBatchRpcs)
+		{
+			@Override
+			protected Future<List<Key>> startChunk(List<Entity> chunk)
+			{
+				return asyncDb.put(chunk);
+			}
+		}.executeIsolated(chunks);
+		
+		List<Entity> failedEntities = new ArrayList<>();
+		for(ChunkedBatchOperation.ChunkOutcome<Entity, List<Key>> outcome:outcomes)
+		{
+			summary.addChunk(BulkWriteSummary.Operation.PUT, outcome.chunk.size(), outcome.durationMs, outcome.error);
+			if (outcome.error!=null)
+			{
+				log.log(Level.WARNING, "A bulk write chunk of "+outcome.chunk.size()+" puts failed.", outcome.error);
+				failedEntities.addAll(outcome.chunk);
+			}
+		}
+		return failedEntities;
+	}
+	
+	/**
+	 * Bulk write version of deleteFromDatastore(), see flushBulkWrite().
+	 * 
+	 * @param keys
+	 * @param summary
+	 * @return The keys that were not deleted because their chunk failed.
+	 */
+	private List<Key> deleteFromDatastore(Collection<Key> keys, BulkWriteSummary summary)
+	{
+		List<List<Key>> chunks = ChunkedBatchOperation.split(new ArrayList<>(keys), MAX_DATASTORE_DELETE_BATCH, 0);
+		List<ChunkedBatchOperation.ChunkOutcome<Key, Void>> outcomes = new ChunkedBatchOperation<Key, Void>(maxConcurrentBatchRpcs)
+		{
+			@Override
+			protected Future<Void> startChunk(List<Key> chunk)
+			{
+				return asyncDb.delete(chunk);
+			}
+		}.executeIsolated(chunks);
+		
+		List<Key> failedKeys = new ArrayList<>();
+		for(ChunkedBatchOperation.ChunkOutcome<Key, Void> outcome:outcomes)
+		{
+			summary.addChunk(BulkWriteSummary.Operation.DELETE, outcome.chunk.size(), outcome.durationMs, outcome.error);
+			if (outcome.error!=null)
+			{
+				log.log(Level.WARNING, "A bulk write chunk of "+outcome.chunk.size()+" deletes failed.", outcome.error);
+				failedKeys.addAll(outcome.chunk);
+			}
+		}
+		return failedKeys;
+	}
+	
+	/**
+	 * A datastore batch delete that is split into parallel chunks if there are too many keys for one call.
+	 * 
+	 * @param keys
+	 */
+	private void deleteFromDatastore(Collection<Key> keys)
+	{
+		if (keys.size()<=MAX_DATASTORE_DELETE_BATCH)
+		{
+			db.delete(keys);
+			return;
+		}
+		
+		List<List<Key>> chunks = ChunkedBatchOperation.split(new ArrayList<>(keys), MAX_DATASTORE_DELETE_BATCH, 0);
+		new ChunkedBatchOperation<Key, Void>(maxConcurrentBatchRpcs)
+		{
+			@Override
+			protected Future<Void> startChunk(List<Key> chunk)
+			{
+				return asyncDb.delete(chunk);
+			}
+		}.execute(chunks);
+	}
+	
+	private void deleteEntityFromMemcache(Key entityKey)
+	{
+		deleteEntitiesFromMemcache(Arrays.asList(entityKey));
+	}
+	
+	/**
+	 * Deleted entities of kinds that use memcache leave a tombstone behind instead of an empty slot. Fills that 
+	 * don't hold a lease (see fillMemcacheFromHedgedRead()) only add to empty slots, so this stops a read that 
+	 * saw the entity before it was deleted from putting it back.
+	 * 
+	 * @param entityKeys
+	 */
+	private void deleteEntitiesFromMemcache(Collection<Key> entityKeys)
+	{
+		awaitPostCommitCacheUpdates();
+		Map<String, Object> tombstones = new HashMap<>();
+		ArrayList<String> list = new ArrayList<>();
+		for(Key key:entityKeys)
+		{
+			if (isMemcacheEnabledForKind(key.getKind()))
+				tombstones.put(toMemcacheKey(key), new MemcacheTombstone(key));
+			else
+				list.add(toMemcacheKey(key));
+		}
+		
+		if (tombstones.isEmpty()==false)
+			mc.putAll(tombstones, Expiration.byDeltaMillis((int)getDeleteTombstoneTtlMs()));
+		if (list.isEmpty()==false)
+			mc.deleteAll(list);
+	}
+	
+	/**
+	 * @return How long the tombstone a delete leaves behind lives. Even with negative caching turned off it has to 
+	 * last as long as a fill lease, which is how long we allow a read to take.
+	 */
+	private static long getDeleteTombstoneTtlMs()
+	{
+		return Math.max(negativeCacheTtlMs, cacheFillLeaseMs);
+	}
+	
+	private void markEntityChanged(Entity entity)
+	{
+		if (entity==null)
+			return;
+		
+		// Here we're doing the check to see if we're in a transaction that the entity was fetched while in the transaction and not outside of it.
+		// Note: we're excluding incomplete keys because that means the entity was just created and is not currently in the DB.
+		if (isTransactionActive() && entity.getKey().isComplete()==true && enforceEntityFetchWithinTransaction)
+			if (transactionallyFetchedEntities==null || transactionallyFetchedEntities.contains(entity.getKey())==false)
+				throw new EntityNotFetchedWithinTransactionException(entity);
+		
+		if (transactionallyChangedEntities==null)
+			transactionallyChangedEntities = new HashMap<>();
+		
+		transactionallyChangedEntities.put(entity.getKey(), entity);
+		
+		if (transactionallyDeletedEntities!=null)
+			transactionallyDeletedEntities.remove(entity.getKey());
+		
+	}
+	
+	
+	private void markEntityDeleted(Key key)
+	{
+		if (key==null)
+			return;
+		if (transactionallyDeletedEntities==null)
+			transactionallyDeletedEntities = new HashSet<>();
+		
+		transactionallyDeletedEntities.add(key);
+		
+		if (transactionallyChangedEntities!=null)
+			transactionallyChangedEntities.remove(key);
+		
+	}
+
+	private void clearTransactionEntityTrackers()
+	{
+		if (transactionallyFetchedEntities!=null)
+			transactionallyFetchedEntities.clear();
+		if (transactionallyChangedEntities!=null)
+			transactionallyChangedEntities.clear();
+		if (transactionallyDeletedEntities!=null)
+			transactionallyDeletedEntities.clear();
+		if (transactionalPutBuffer!=null)
+			transactionalPutBuffer.clear();
+		if (transactionalDeleteBuffer!=null)
+			transactionalDeleteBuffer.clear();
+		if (pendingQueryCacheInvalidations!=null)
+			pendingQueryCacheInvalidations.clear();
+	}
+	
+	/**
+	 * Holds on to a put made inside of the transaction until the commit. If the same entity is put or deleted
+	 * again before then, only the last write is sent.
+	 * 
+	 * @param entity
+	 */
+	private void bufferTransactionalPut(Entity entity)
+	{
+		if (cacheEnabled)
+			markEntityChanged(entity);
+		
+		if (transactionalPutBuffer==null)
+			transactionalPutBuffer = new LinkedHashMap<>();
+		transactionalPutBuffer.put(entity.getKey(), entity);
+		
+		if (transactionalDeleteBuffer!=null)
+			transactionalDeleteBuffer.remove(entity.getKey());
+	}
+	
+	private void bufferTransactionalDelete(Key key)
+	{
+		// Deleted entities are always dropped from the cache on commit, even when caching is off, so the cache can't hold on to them
+		markEntityDeleted(key);
+		
+		if (transactionalDeleteBuffer==null)
+			transactionalDeleteBuffer = new LinkedHashSet<>();
+		transactionalDeleteBuffer.add(key);
+		
+		if (transactionalPutBuffer!=null)
+			transactionalPutBuffer.remove(key);
+	}
+	
+	/**
+	 * Sends all the buffered transactional writes to the datastore in as few calls as possible.
+	 */
+	private void flushTransactionalWrites()
+	{
+		if (transactionalDeleteBuffer!=null && transactionalDeleteBuffer.isEmpty()==false)
+		{
+			deleteFromDatastore(new ArrayList<>(transactionalDeleteBuffer));
+			transactionalDeleteBuffer.clear();
+		}
+		
+		if (transactionalPutBuffer!=null && transactionalPutBuffer.isEmpty()==false)
+		{
+			putToDatastore(new ArrayList<>(transactionalPutBuffer.values()));
+			transactionalPutBuffer.clear();
+		}
+	}
+	
+	public boolean isBulkWriteModeOn()
+	{
+		return bulkPutMode;
+	}
+	
+	/**
+	 * When you call this method, the CachedDatastoreService will enter into a mode that 
+	 * will cause calls to .put() to not actually put the entities to the database until
+	 * commitBulkPut() gets called, where it will do a bulk put of all entities to be saved
+	 * all at once instead.
+	 * 
+	 * So big jobs don't run out of memory, the buffered writes are flushed automatically whenever
+	 * the thresholds set with setBulkWriteAutoFlushThresholds() are reached.
+	 */
+	public void beginBulkWriteMode()
+	{
+		if (isTransactionActive())
+			throw new IllegalStateException("Cannot use bulk-put-mode while a transaction is active.");
+		if (bulkPutMode)
+			throw new IllegalStateException("Bulk put mode is already active.");
+		
+		bulkPutMode = true;
+		bulkPutEstimatedBytes = 0;
+		bulkPutEstimates.clear();
+		bulkWriteCompletedKeys = new IdentityHashMap<>();
+		bulkWriteSummary = new BulkWriteSummary();
+	}
+	
+	/**
+	 * Sets when bulk write mode flushes the buffered writes on its own.
+	 * 
+	 * @param maxEntities How many puts and deletes can be buffered.
+	 * @param maxBytes The estimated size the buffered entities can reach.
+	 */
+	public void setBulkWriteAutoFlushThresholds(int maxEntities, long maxBytes)
+	{
+		if (maxEntities<1) throw new IllegalArgumentException("maxEntities must be greater than 0.");
+		if (maxBytes<1) throw new IllegalArgumentException("maxBytes must be greater than 0.");
+		bulkWriteMaxEntities = maxEntities;
+		bulkWriteMaxBytes = maxBytes;
+	}
+	
+	/**
+	 * Buffers the given entity for the bulk write. An entity that is already buffered is replaced, and its 
+	 * size is only counted once.
+	 * 
+	 * @param entity
+	 */
+	private void addToBulkPut(CachedEntity entity)
+	{
+		if (entitiesToBulkPut.remove(entity))
+		{
+			Long oldEstimate = bulkPutEstimates.remove(entity);
+			if (oldEstimate!=null)
+				bulkPutEstimatedBytes -= oldEstimate;
+		}
+		entitiesToBulkPut.add(entity);
+		
+		long estimate = DBUtils.estimateSize(entity);
+		bulkPutEstimates.put(entity, estimate);
+		bulkPutEstimatedBytes += estimate;
+	}
+	
+	private void flushBulkWriteIfFull()
+	{
+		if (entitiesToBulkPut.size()+entitiesToBulkDelete.size()>=bulkWriteMaxEntities || bulkPutEstimatedBytes>=bulkWriteMaxBytes)
+			flushBulkWrite();
+	}
+	
+	public int getBulkPutEntityCount()
+	{
+		return entitiesToBulkPut.size();
+	}
+	
+	/**
+	 * Drops all the writes that are still buffered. Anything that was already flushed automatically 
+	 * stays written.
+	 */
+	public void cancelBulkWrite()
+	{
+		if (isTransactionActive())
+			throw new IllegalStateException("Cannot use bulk-put-mode while a transaction is active.");
+
+		entitiesToBulkPut.clear();
+		entitiesToBulkDelete.clear();
+		
+		bulkPutMode = false;
+		bulkPutEstimatedBytes = 0;
+		bulkPutEstimates.clear();
+		bulkWriteCompletedKeys = null;
+		bulkWriteSummary = null;
+	}
+	
+	/**
+	 * Writes everything that is still buffered and leaves bulk write mode.
+	 * 
+	 * @return What was written during the whole bulk write, including earlier automatic flushes.
+	 */
+	public BulkWriteSummary commitBulkWrite()
+	{
+		if (isTransactionActive())
+			throw new IllegalStateException("Cannot use bulk-put-mode while a transaction is active.");
+		
+		flushBulkWrite();
+		
+		BulkWriteSummary summary = bulkWriteSummary;
+		bulkPutMode = false;
+		bulkWriteCompletedKeys = null;
+		bulkWriteSummary = null;
+		
+		if (summary!=null && summary.hasFailures())
+			log.warning("Bulk write finished with failures: "+summary);
+		
+		return summary;
+	}
+	
+	/**
+	 * Sends the buffered bulk writes to the datastore. The chunks are written in parallel and a failed chunk 
+	 * doesn't stop the others, failures are recorded in the bulk write summary instead.
+	 */
+	private void flushBulkWrite()
+	{
+		if (entitiesToBulkPut.isEmpty() && entitiesToBulkDelete.isEmpty())
+			return;
+		
+		long startTime = System.currentTimeMillis();
+		if (bulkWriteSummary==null)
+			bulkWriteSummary = new BulkWriteSummary();
+		if (bulkWriteCompletedKeys==null)
+			bulkWriteCompletedKeys = new IdentityHashMap<>();
+		
+		// Notify of the put
+		if (isPutEventHandlerEnabled())
+		{
+			List<CachedEntity> list = new ArrayList<>(entitiesToBulkPut);
+			for(int i = list.size()-1; i>=0; i--)
+			{
+				CachedEntity entity = list.get(i);
+				if (putEventHandler(entity)==false)
+					entitiesToBulkPut.remove(entity);
+			}
+		}
+		
+		
+		 // Look for any incomplete keys and add them to the pile we need to complete before proceeding
+		Map<String, List<CachedEntity>> incompleteKeyEntities = new HashMap<String, List<CachedEntity>>();
+		if (entitiesToBulkPut.isEmpty()==false)
+			for(CachedEntity e:entitiesToBulkPut)
+				if (e.getKey().isComplete()==false)
+				{
+					List<CachedEntity> list = incompleteKeyEntities.get(e.getKind());
+					if (list==null)
+					{
+						list = new ArrayList<CachedEntity>();
+						incompleteKeyEntities.put(e.getKind(), list);
+					}
+					list.add(e);
+				}
+		
+		// Keys completed by earlier flushes still have to be replaced in the entities we have now
+		Map<Key, Key> oldKeyToNewKeyMap = bulkWriteCompletedKeys;
+		if (incompleteKeyEntities.isEmpty()==false)
+		{
+			// Now that we found incomplete keys, we will complete them but keep track of the original keys
+			for(String kind:incompleteKeyEntities.keySet())
 			{
 				List<CachedEntity> incompleteEntitiesList = incompleteKeyEntities.get(kind);
 				KeyRange range = allocateIds(kind, incompleteEntitiesList.size());
@@ -470,29 +2133,32 @@ public class CachedDatastoreService
 					i++;
 				}
 			}
-			
+		}
+		
+		if (oldKeyToNewKeyMap.isEmpty()==false)
+		{
 			// Keys have been replaced, now we have to look at EVERYTHING we're about to put to the database and 
-			// replace all the old keys with the new keys
-			Set<Key> keySet = oldKeyToNewKeyMap.keySet();
-			for(Key oldKey:keySet)
-			{
-				Key newKey = oldKeyToNewKeyMap.get(oldKey);
-				for(CachedEntity e:entitiesToBulkPut)
-				{
-					e.updateStoredKey(oldKey, newKey);
-				}
-			}
+			// replace all the old keys with the new keys. This is one pass over each entity's fields.
+			int replacedCount = 0;
+			for(CachedEntity e:entitiesToBulkPut)
+				replacedCount += e.updateStoredKeys(oldKeyToNewKeyMap);
 			
+			if (replacedCount>0)
+				log.fine("Bulk write replaced "+replacedCount+" references to "+oldKeyToNewKeyMap.size()+" incomplete keys.");
 		}
 		
 		
-		bulkPutMode = false;
 		if (entitiesToBulkDelete.isEmpty()==false)
-			delete(entitiesToBulkDelete);
+			delete(entitiesToBulkDelete, bulkWriteSummary);
 		if (entitiesToBulkPut.isEmpty()==false)
-			put(entitiesToBulkPut);
+			put(entitiesToBulkPut, bulkWriteSummary);
 		
 		entitiesToBulkPut.clear();
+		entitiesToBulkDelete.clear();
+		bulkPutEstimatedBytes = 0;
+		bulkPutEstimates.clear();
+		
+		bulkWriteSummary.addFlush(System.currentTimeMillis()-startTime);
 	}
 
 
@@ -508,10 +2174,23 @@ public class CachedDatastoreService
 		if (bulkPutMode==true)
 			throw new IllegalStateException("Cannot use a transaction while the system is in bulk put mode.");
 		
-		if (isTransactionActive()) throw new IllegalStateException("A transaction is already active");
-		
-		this.enforceEntityFetchWithinTransaction = enforceEntityFetchWithinTransaction;
-		currentTransaction = db.beginTransaction(TransactionOptions.Builder.withXG(true));
+		synchronized(transactionLock)
+		{
+			Transaction activeTransaction = currentTransaction;
+			if (activeTransaction!=null && activeTransaction.isActive())
+			{
+				if (transactionThread==Thread.currentThread())
+					throw new IllegalStateException("A transaction is already active");
+				throw new IllegalStateException("Another thread has a transaction active on this CachedDatastoreService, only one transaction can be active at a time.");
+			}
+			
+			// Anything read inside of the transaction comes straight from the datastore, so it has to have our writes
+			flushWriteBehindBuffer();
+			
+			this.enforceEntityFetchWithinTransaction = enforceEntityFetchWithinTransaction;
+			currentTransaction = db.beginTransaction(TransactionOptions.Builder.withXG(true));
+			transactionThread = Thread.currentThread();
+		}
 	}
 	
 	public void commit() throws ConcurrentModificationException
@@ -521,8 +2200,11 @@ public class CachedDatastoreService
 		{
 			if (!isTransactionActive()) throw new IllegalStateException("There is no active transaction to commit.");
 
+			flushTransactionalWrites();
+			
 			Transaction tx = currentTransaction;
 			currentTransaction = null;
+			transactionThread = null;
 
 			tx.commit();
 		}
@@ -534,27 +2216,286 @@ public class CachedDatastoreService
 		}
 
 		
+		// The data is already durable, so memcache is brought up to date asynchronously
+		startPostCommitCacheUpdate(transactionallyChangedEntities, transactionallyDeletedEntities);
+		
+		// Kind generations and query cache counters may only move once the new values are in memcache, otherwise 
+		// another instance could cache the old entity (or query result) under the new counters
+		if (isCounterBumpNeededAfterCommit())
+			awaitPostCommitCacheUpdates();
+		
+		// Every generation and query cache counter the commit affects is bumped in a single call
+		Set<String> kinds = new HashSet<>();
+		Set<String> queryCacheCounters = new HashSet<>();
+		if (pendingQueryCacheInvalidations!=null)
+			queryCacheCounters.addAll(pendingQueryCacheInvalidations);
+		if (transactionallyChangedEntities!=null)
+			for(Key key:transactionallyChangedEntities.keySet())
+				kinds.add(key.getKind());
+		if (transactionallyDeletedEntities!=null)
+		{
+			for(Key key:transactionallyDeletedEntities)
+				kinds.add(key.getKind());
+			addQueryCacheInvalidationsForDeletes(transactionallyDeletedEntities, queryCacheCounters);
+		}
+		bumpKindGenerations(kinds, queryCacheCounters);
+		
 		if (transactionallyChangedEntities!=null)
-			putEntitiesToMemcache(transactionallyChangedEntities.values());
+			updateInstanceCache(transactionallyChangedEntities.values());
 		
 		if (transactionallyDeletedEntities!=null)
-			deleteEntitiesFromMemcache(transactionallyDeletedEntities);
+			deleteEntitiesFromInstanceCache(transactionallyDeletedEntities);
 		
 		clearTransactionEntityTrackers();
 	}
 	
+	/**
+	 * @return True if finishing the current commit will bump any kind generations or query cache counters.
+	 */
+	private boolean isCounterBumpNeededAfterCommit()
+	{
+		if (pendingQueryCacheInvalidations!=null && pendingQueryCacheInvalidations.isEmpty()==false)
+			return true;
+		
+		Set<String> kinds = new HashSet<>();
+		if (transactionallyChangedEntities!=null)
+			for(Key key:transactionallyChangedEntities.keySet())
+				kinds.add(key.getKind());
+		if (transactionallyDeletedEntities!=null)
+			for(Key key:transactionallyDeletedEntities)
+				kinds.add(key.getKind());
+		
+		for(String kind:kinds)
+			if (isInstanceCacheEnabledForKind(kind) || getCachePolicy(kind).getQueryCacheMode()!=QueryCacheMode.NONE)
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Sends the memcache updates for a commit without waiting for them. Commits that bump kind generations or 
+	 * query cache counters wait for them right away, see commit(). Entities are put with their kind's 
+	 * memcache TTL and deletes are written as tombstones when negative caching is on. Since a memcache batch put 
+	 * only takes one expiration, there is one call per distinct expiration and they all run at the same time.
+	 * 
+	 * @param changedEntities
+	 * @param deletedKeys
+	 */
+	private void startPostCommitCacheUpdate(Map<Key, Entity> changedEntities, Set<Key> deletedKeys)
+	{
+		boolean hasChanges = changedEntities!=null && changedEntities.isEmpty()==false;
+		boolean hasDeletes = deletedKeys!=null && deletedKeys.isEmpty()==false;
+		if (hasChanges==false && hasDeletes==false)
+			return;
+		
+		// An older update for the same entities could otherwise land after this one
+		awaitPostCommitCacheUpdates();
+		
+		List<PostCommitCacheUpdate> updates = new ArrayList<>();
+		Set<Key> updateKeys = new HashSet<>();
+		
+		// Memcache values grouped by their TTL
+		Map<Long, Map<String, Object>> valuesByTtl = new HashMap<>();
+		Map<String, Key> keysByMemcacheKey = new HashMap<>();
+		if (hasChanges)
+		{
+			for(Map.Entry<Long, List<Entity>> group:groupByMemcacheTtl(changedEntities.values()).entrySet())
+			{
+				Map<String, Object> values = new HashMap<>();
+				for(Entity entity:group.getValue())
+				{
+					String mcKey = toMemcacheKey(entity.getKey());
+					values.put(mcKey, toMemcacheValue(mcKey, entity, toExpiration(group.getKey())));
+					keysByMemcacheKey.put(mcKey, entity.getKey());
+				}
+				valuesByTtl.put(group.getKey(), values);
+			}
+		}
+		
+		if (hasDeletes)
+		{
+			Map<String, Key> deletedKeysByMemcacheKey = new HashMap<>();
+			Map<String, Object> tombstones = new HashMap<>();
+			for(Key key:deletedKeys)
+			{
+				String mcKey = toMemcacheKey(key);
+				if (isMemcacheEnabledForKind(key.getKind()))
+				{
+					tombstones.put(mcKey, new MemcacheTombstone(key));
+					keysByMemcacheKey.put(mcKey, key);
+				}
+				else
+					deletedKeysByMemcacheKey.put(mcKey, key);
+			}
+			
+			if (tombstones.isEmpty()==false)
+			{
+				Map<String, Object> values = valuesByTtl.get(getDeleteTombstoneTtlMs());
+				if (values==null)
+					valuesByTtl.put(getDeleteTombstoneTtlMs(), tombstones);
+				else
+					values.putAll(tombstones);
+			}
+			
+			if (deletedKeysByMemcacheKey.isEmpty()==false)
+				updates.add(new PostCommitCacheUpdate(deletedKeysByMemcacheKey, asyncMc.deleteAll(deletedKeysByMemcacheKey.keySet()), false));
+			updateKeys.addAll(deletedKeys);
+		}
+		
+		for(Map.Entry<Long, Map<String, Object>> group:valuesByTtl.entrySet())
+		{
+			Map<String, Object> values = group.getValue();
+			Expiration expiration = toExpiration(group.getKey());
+			List<String> mcKeys = new ArrayList<>(values.keySet());
+			for(List<String> chunk:ChunkedBatchOperation.split(mcKeys, MAX_MEMCACHE_BATCH, 0))
+			{
+				Map<String, Object> chunkValues = new HashMap<>();
+				Map<String, Key> chunkKeys = new HashMap<>();
+				for(String mcKey:chunk)
+				{
+					chunkValues.put(mcKey, values.get(mcKey));
+					chunkKeys.put(mcKey, keysByMemcacheKey.get(mcKey));
+				}
+				updates.add(new PostCommitCacheUpdate(chunkKeys, asyncMc.putAll(chunkValues, expiration, SetPolicy.SET_ALWAYS), true));
+			}
+		}
+		updateKeys.addAll(keysByMemcacheKey.values());
+		
+		synchronized(postCommitCacheUpdateLock)
+		{
+			// Another thread's commit may have left its own updates pending in the meantime
+			if (pendingPostCommitCacheUpdates!=null)
+			{
+				updates.addAll(pendingPostCommitCacheUpdates);
+				updateKeys.addAll(pendingPostCommitCacheKeys);
+			}
+			pendingPostCommitCacheKeys = updateKeys;
+			pendingPostCommitCacheUpdates = updates;
+		}
+	}
+	
+	/**
+	 * Waits for the memcache updates of earlier commits, but only if they involve any of the given keys.
+	 * 
+	 * @param keys
+	 */
+	private void awaitPostCommitCacheUpdatesFor(Iterable<Key> keys)
+	{
+		Set<Key> pendingKeys = pendingPostCommitCacheKeys;
+		if (pendingKeys==null)
+			return;
+		
+		for(Key key:keys)
+			if (pendingKeys.contains(key))
+			{
+				awaitPostCommitCacheUpdates();
+				return;
+			}
+	}
+	
+	/**
+	 * Waits for the async memcache updates made after earlier commits and checks that they worked. Any entity 
+	 * whose update failed is deleted from memcache so a stale copy can't stay behind. 
+	 * 
+	 * This is done automatically before this CachedDatastoreService reads or writes any of the same entities
+	 * in memcache, but it can be called at the end of a request to make sure failures are reported.
+	 */
+	public void awaitPostCommitCacheUpdates()
+	{
+		List<PostCommitCacheUpdate> updates;
+		synchronized(postCommitCacheUpdateLock)
+		{
+			updates = pendingPostCommitCacheUpdates;
+			pendingPostCommitCacheUpdates = null;
+			pendingPostCommitCacheKeys = null;
+		}
+		if (updates==null)
+			return;
+		
+		Set<Key> updatedKeys = new HashSet<>();
+		Set<Key> failedKeys = new HashSet<>();
+		for(PostCommitCacheUpdate update:updates)
+		{
+			try
+			{
+				Set<String> result = update.future.get();
+				for(String mcKey:update.keysByMemcacheKey.keySet())
+				{
+					if (update.resultIsStoredKeys && (result==null || result.contains(mcKey)==false))
+						failedKeys.add(update.keysByMemcacheKey.get(mcKey));
+					else
+						updatedKeys.add(update.keysByMemcacheKey.get(mcKey));
+				}
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				failedKeys.addAll(update.keysByMemcacheKey.values());
+			}
+			catch(ExecutionException e)
+			{
+				log.log(Level.WARNING, "A post-commit memcache update failed.", e.getCause());
+				failedKeys.addAll(update.keysByMemcacheKey.values());
+			}
+		}
+		
+		if (failedKeys.isEmpty()==false)
+		{
+			failedPostCommitCacheUpdates.addAndGet(failedKeys.size());
+			
+			// A missing entry only costs a datastore read, a stale one is wrong
+			try
+			{
+				ArrayList<String> list = new ArrayList<>();
+				for(Key key:failedKeys)
+					list.add(toMemcacheKey(key));
+				mc.deleteAll(list);
+			}
+			catch(RuntimeException e)
+			{
+				log.log(Level.SEVERE, "Unable to invalidate "+failedKeys.size()+" entities in memcache after a failed post-commit update. They may be stale until they expire.", e);
+			}
+		}
+		
+		onPostCommitCacheUpdateComplete(updatedKeys, failedKeys);
+	}
+	
+	/**
+	 * Called once the memcache updates made after a commit have been checked, see awaitPostCommitCacheUpdates().
+	 * Does nothing by default.
+	 * 
+	 * @param updatedKeys The entities that were updated in memcache.
+	 * @param failedKeys The entities whose update failed. These were deleted from memcache instead.
+	 */
+	protected void onPostCommitCacheUpdateComplete(Set<Key> updatedKeys, Set<Key> failedKeys)
+	{
+	}
+	
+	/**
+	 * @return How many entity updates made to memcache after a commit have failed since this instance started.
+	 */
+	public static long getFailedPostCommitCacheUpdateCount()
+	{
+		return failedPostCommitCacheUpdates.get();
+	}
+	
+	/**
+	 * @return True if the calling thread began a transaction that is still active. Other threads always get false.
+	 */
 	public boolean isTransactionActive()
 	{
-		return currentTransaction!=null && currentTransaction.isActive();
+		Transaction tx = currentTransaction;
+		return tx!=null && transactionThread==Thread.currentThread() && tx.isActive();
 	}
 	
 	public boolean rollbackIfActive()
 	{
-		if(currentTransaction!=null) {
-			if (currentTransaction.isActive()) {
-				currentTransaction.rollback();
+		Transaction tx = currentTransaction;
+		if(tx!=null && transactionThread==Thread.currentThread()) {
+			if (tx.isActive()) {
+				tx.rollback();
 			}
 			currentTransaction = null;
+			transactionThread = null;
 			clearTransactionEntityTrackers();
 			return true;
 		}
@@ -572,31 +2513,44 @@ public class CachedDatastoreService
 		put(Arrays.asList(entities));
 	}
 
+	/**
+	 * Puts only the given entities that have unsaved changes. Entities whose properties were only ever set 
+	 * to the values they already had are skipped, see CachedEntity.getChangedProperties().
+	 * 
+	 * @param entities
+	 */
 	public void putIfChanged(Collection<CachedEntity> entities)
 	{
-		if (entities instanceof List)
-		{
-			for(int i = entities.size()-1; i>=0; i--)
-			{
-				if (((List<CachedEntity>) entities).get(i) == null)
-					entities.remove(i);
-				if (((List<CachedEntity>) entities).get(i).isUnsaved()==false)
-					entities.remove(i);
-			}
-		}
+		List<CachedEntity> changedEntities = new ArrayList<>();
+		for(CachedEntity entity:entities)
+			if (entity!=null && entity.isUnsaved())
+				changedEntities.add(entity);
 		
-		put(entities);
+		if (changedEntities.isEmpty())
+			return;
+		
+		put(changedEntities);
 	}
 	
 	public void put(Collection<CachedEntity> entities)
 	{
 		if (bulkPutMode)
 		{
-			entitiesToBulkPut.removeAll(entities);
-			entitiesToBulkPut.addAll(entities);
+			for(CachedEntity entity:entities)
+				addToBulkPut(entity);
+			flushBulkWriteIfFull();
 			return;
 		}
 		
+		put(entities, null);
+	}
+	
+	/**
+	 * @param entities
+	 * @param bulkWriteSummary If not null, the datastore writes are recorded here and a failed chunk doesn't throw. The caches are only updated for the chunks that were written.
+	 */
+	private void put(Collection<CachedEntity> entities, BulkWriteSummary bulkWriteSummary)
+	{
 		if (statsTracking)
 		{
 			//TODO: THIS DEFINITELY NEEDS TO BE WAY MORE EFFICIENT, CRIPES
@@ -608,6 +2562,7 @@ public class CachedDatastoreService
 
 		// Go through looking for keys that are incomplete and handle them specially
 		List<Entity> entitiesToPut = new ArrayList<Entity>();
+		Set<String> queryCacheCounters = new HashSet<>();
 		for(CachedEntity entity:entities)
 		{
 			// Notify of the put
@@ -615,34 +2570,70 @@ public class CachedDatastoreService
 				if (putEventHandler(entity)==false)
 					continue;
 			
+			addQueryCacheInvalidations(entity, queryCacheCounters);
 			
 			Entity realEntity = entity.getEntity();
-			entitiesToPut.add(realEntity);
 			
-			if (cacheEnabled && isTransactionActive())
+			if (isTransactionActive())
 			{
-				// If this is a new entity, then we need to add the entity to the transaction first
-				if (entity.getKey().isComplete()==false || entity.newEntity)
+				// Entities with incomplete keys are put right away so they get their ID, everything else waits for the commit
+				if (entity.getKey().isComplete()==false)
 				{
-					addEntityToTransaction(realEntity.getKey());
-					markEntityChanged(realEntity);
+					entitiesToPut.add(realEntity);
 				}
 				else
 				{
-					markEntityChanged(realEntity);
+					// If this is a new entity, then we need to add the entity to the transaction first
+					if (entity.newEntity)
+						addEntityToTransaction(realEntity.getKey());
+					bufferTransactionalPut(realEntity);
 				}
 				entity.newEntity = false;
-					
+			}
+			else
+			{
+				entitiesToPut.add(realEntity);
 			}
 			
-			entity.unsavedChanges = false;
+			entity.markSaved();
+		}
+		
+		List<Entity> entitiesToPutNow = entitiesToPut;
+		// Bulk writes are written and reported in chunks, so they never go through the write-behind buffer
+		if (cacheEnabled && isTransactionActive()==false && bulkWriteSummary==null)
+		{
+			entitiesToPutNow = new ArrayList<>();
+			for(Entity entity:entitiesToPut)
+				if (isWriteBehindCandidate(entity))
+					addToWriteBehindBuffer(entity);
+				else
+					entitiesToPutNow.add(entity);
 		}
 		
-		db.put(entitiesToPut);
+		if (bulkWriteSummary==null)
+			putToDatastore(entitiesToPutNow);
+		else
+			entitiesToPut.removeAll(new HashSet<>(putToDatastore(entitiesToPutNow, bulkWriteSummary)));
 		
+
+		// The entities that were just given their ID are now part of the transaction
+		if (cacheEnabled && isTransactionActive())
+		{
+			for(Entity realEntity:entitiesToPut)
+			{
+				addEntityToTransaction(realEntity.getKey());
+				markEntityChanged(realEntity);
+			}
+		}
 		
 		if (cacheEnabled && isTransactionActive()==false)
+		{
 			putEntitiesToMemcache(entitiesToPut);
+			bumpKindGenerationsForEntities(entitiesToPut, queryCacheCounters);
+			updateInstanceCache(entitiesToPut);
+		}
+		else
+			invalidateQueryCache(queryCacheCounters);
 		
 		if (singleEntityMode)
 			trackFetchedEntityThisRequest(entities);
@@ -655,13 +2646,18 @@ public class CachedDatastoreService
 	{
 		if (bulkPutMode)
 		{
-			entitiesToBulkPut.remove(entity);
-			entitiesToBulkPut.add(entity);
+			addToBulkPut(entity);
+			flushBulkWriteIfFull();
 			return;
 		}
 		
 		if (singlePutMode && isEntityPutThisRequest(entity.getKey()))
-			throw new EntityAlreadyPutException("The "+entity.getKey()+" entity was already put in this request.", (Exception)entity.getAttribute("onePutStacktrace"));
+		{
+			Exception firstPut = (Exception)entity.getAttribute("onePutStacktrace");
+			if (firstPut==null)
+				throw new EntityAlreadyPutException("The "+entity.getKey()+" entity was already put in this request. Turn on singlePutStacktraceMode to see where it was first put.", null);
+			throw new EntityAlreadyPutException("The "+entity.getKey()+" entity was already put in this request.", firstPut);
+		}
 		
 		if (statsTracking)
 			incrementStat("Stats_"+entity.getKey().getKind());
@@ -671,35 +2667,50 @@ public class CachedDatastoreService
 			if (putEventHandler(entity)==false)
 				return;
 		
+		Set<String> queryCacheCounters = new HashSet<>();
+		addQueryCacheInvalidations(entity, queryCacheCounters);
 		
 		Entity realEntity = entity.getEntity();
-		if (cacheEnabled && isTransactionActive())
+		if (isTransactionActive())
 		{
-			// If this is a new entity, then we need to add the entity to the transaction first
-			if (entity.getKey().isComplete()==false || entity.newEntity)
+			if (entity.getKey().isComplete()==false)
 			{
+				// The entity needs its ID right away, so this one can't wait for the commit
 				db.put(realEntity);
-				entity.newEntity = false;
-				addEntityToTransaction(realEntity.getKey());
-				markEntityChanged(realEntity);
+				if (cacheEnabled)
+				{
+					addEntityToTransaction(realEntity.getKey());
+					markEntityChanged(realEntity);
+				}
 			}
 			else
 			{
-				markEntityChanged(realEntity);
-				db.put(realEntity);
-				entity.newEntity = false;
+				// If this is a new entity, then we need to add the entity to the transaction first
+				if (entity.newEntity)
+					addEntityToTransaction(realEntity.getKey());
+				bufferTransactionalPut(realEntity);
 			}
-				
+			entity.newEntity = false;
+		}
+		else if (isWriteBehindCandidate(realEntity))
+		{
+			addToWriteBehindBuffer(realEntity);
+			entity.newEntity = false;
 		}
 		else
 		{
 			db.put(realEntity);
 			entity.newEntity = false;
 		}
-
 		
 		if (cacheEnabled && isTransactionActive()==false)
+		{
 			putEntityToMemcache(realEntity);
+			bumpKindGenerations(Arrays.asList(realEntity.getKind()), queryCacheCounters);
+			updateInstanceCache(realEntity);
+		}
+		else
+			invalidateQueryCache(queryCacheCounters);
 		
 		if (singlePutMode && isTransactionActive()==false)
 			trackPutEntityThisRequest(entity);
@@ -707,19 +2718,123 @@ public class CachedDatastoreService
 		if (singleEntityMode)
 			trackFetchedEntityThisRequest(entity);
 		
-		entity.unsavedChanges = false;
+		entity.markSaved();
+	}
+	
+	/**
+	 * If a transaction is active, the given entity will only be put just before
+	 * the transaction is committed. This is what put() does anyway for entities
+	 * with complete keys, so this is the same as calling put().
+	 * 
+	 * @param entity
+	 */
+	public void putOnCommit(CachedEntity entity)
+	{
+		put(entity);
+	}
+	
+	private boolean isWriteBehindCandidate(Entity entity)
+	{
+		return cacheEnabled && isTransactionActive()==false && entity.getKey().isComplete() && isWriteBehindEnabledForKind(entity.getKind());
+	}
+	
+	private void addToWriteBehindBuffer(Entity entity)
+	{
+		if (writeBehindBuffer==null)
+			writeBehindBuffer = new LinkedHashMap<>();
+		
+		// Only the last put of an entity is kept. We store a copy since the caller may keep changing theirs.
+		writeBehindBuffer.remove(entity.getKey());
+		writeBehindBuffer.put(entity.getKey(), entity.clone());
+		
+		if (writeBehindBuffer.size()>=writeBehindBufferSize)
+			startWriteBehindFlush();
+	}
+	
+	/**
+	 * Sends everything in the write-behind buffer to the datastore without waiting for the result.
+	 */
+	private void startWriteBehindFlush()
+	{
+		if (writeBehindBuffer==null || writeBehindBuffer.isEmpty())
+			return;
+		
+		List<Entity> entities = new ArrayList<>(writeBehindBuffer.values());
+		writeBehindBuffer.clear();
+		
+		// An older put of the same entity that is still running could land after this one, so that has to finish first
+		Set<Key> keys = new HashSet<>();
+		for(Entity entity:entities)
+			keys.add(entity.getKey());
+		awaitWriteBehindBatches(keys, false);
+		
+		if (pendingWriteBehindBatches==null)
+			pendingWriteBehindBatches = new ArrayList<>();
+		for(List<Entity> chunk:ChunkedBatchOperation.split(entities, MAX_DATASTORE_PUT_BATCH, MAX_DATASTORE_PUT_BATCH_BYTES))
+			pendingWriteBehindBatches.add(new WriteBehindBatch(chunk, asyncDb.put(chunk)));
+	}
+	
+	/**
+	 * Waits for the write-behind puts that are still running and include any of the given keys. Puts that 
+	 * already finished are checked (and dropped) along the way.
+	 * 
+	 * @param keys The keys to wait for, or null to wait for everything.
+	 * @param dropFromBuffer If true, the given keys are also taken out of the write-behind buffer so they are never sent.
+	 */
+	private void awaitWriteBehindBatches(Collection<Key> keys, boolean dropFromBuffer)
+	{
+		if (dropFromBuffer && writeBehindBuffer!=null && keys!=null)
+			for(Key key:keys)
+				writeBehindBuffer.remove(key);
+		
+		if (pendingWriteBehindBatches==null)
+			return;
+		
+		Iterator<WriteBehindBatch> iterator = pendingWriteBehindBatches.iterator();
+		while(iterator.hasNext())
+		{
+			WriteBehindBatch batch = iterator.next();
+			if (batch.future.isDone()==false && keys!=null && Collections.disjoint(batch.keys, keys))
+				continue;
+			
+			iterator.remove();
+			try
+			{
+				batch.future.get();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				onWriteBehindFailure(batch.entities, e);
+			}
+			catch(ExecutionException e)
+			{
+				onWriteBehindFailure(batch.entities, e.getCause());
+			}
+		}
 	}
 	
 	/**
-	 * If a transaction is active, the given entity will only be put just before
-	 * the transaction is committed.
+	 * Sends everything in the write-behind buffer to the datastore and waits for all write-behind puts made by 
+	 * this CachedDatastoreService to finish. This should be called at the end of every request that may have 
+	 * put entities of a write-behind kind, see enableWriteBehindForKind().
+	 */
+	public void flushWriteBehindBuffer()
+	{
+		startWriteBehindFlush();
+		awaitWriteBehindBatches(null, false);
+	}
+	
+	/**
+	 * Called when a write-behind put fails. The entities were already put into memcache but never made it 
+	 * to the datastore. By default this just logs the failure, override it to do something else (like retry).
 	 * 
-	 * @param entity
+	 * @param entities
+	 * @param error
 	 */
-	public void putOnCommit(CachedEntity entity)
+	protected void onWriteBehindFailure(List<Entity> entities, Throwable error)
 	{
-		//TODO: Implement this
-		throw new RuntimeException("Method not implemented yet.");
+		log.log(Level.SEVERE, "A write-behind put of "+entities.size()+" entities failed, these writes were lost.", error);
 	}
 
 	public CachedEntity getIfExists(String kind, Long id)
@@ -815,52 +2930,235 @@ public class CachedDatastoreService
 	 */
 	public InstanceCacheWrapper getFromInstanceCache(String key)
 	{
-		InstanceCacheWrapper wrapper = instanceCache.get(key);
-		if (wrapper!=null && wrapper.expiry.getTime()>System.currentTimeMillis())
-			return wrapper;
-		
-		return null;
+		return instanceCache.get(key);
 	}
 	
 
 	
+	/**
+	 * Returns a handle to the given entity without fetching it. The first time any handle is dereferenced, all
+	 * of the handles that are still pending are fetched together in a single batch.
+	 * 
+	 * Use this in loops that would otherwise call get() once per key.
+	 * 
+	 * @param entityKey
+	 * @return
+	 */
+	public DeferredEntity getLater(Key entityKey)
+	{
+		DeferredEntity deferredEntity = new DeferredEntity(this, entityKey);
+		if (entityKey==null)
+		{
+			deferredEntity.setEntity(null);
+			return deferredEntity;
+		}
+		
+		if (pendingDeferredEntities==null)
+			pendingDeferredEntities = new ArrayList<>();
+		pendingDeferredEntities.add(deferredEntity);
+		
+		return deferredEntity;
+	}
+	
+	public DeferredEntity getLater(String kind, Long id)
+	{
+		if (id==null)
+			return getLater(null);
+		
+		return getLater(KeyFactory.createKey(kind, id));
+	}
+	
+	/**
+	 * Loads every pending DeferredEntity in a single batch fetch. This is called automatically the first
+	 * time a pending DeferredEntity is dereferenced.
+	 */
+	public void loadDeferredEntities()
+	{
+		if (pendingDeferredEntities==null || pendingDeferredEntities.isEmpty())
+			return;
+		
+		List<DeferredEntity> toLoad = pendingDeferredEntities;
+		pendingDeferredEntities = null;
+		
+		List<Key> keys = new ArrayList<>();
+		for(DeferredEntity deferredEntity:toLoad)
+			keys.add(deferredEntity.getKey());
+		
+		List<CachedEntity> entities;
+		try
+		{
+			entities = fetchEntitiesFromKeys(keys);
+		}
+		catch(RuntimeException e)
+		{
+			// The handles stay pending so the next get() tries again instead of returning null as if the entities didn't exist
+			if (pendingDeferredEntities!=null)
+				toLoad.addAll(pendingDeferredEntities);
+			pendingDeferredEntities = toLoad;
+			throw e;
+		}
+		
+		for(int i = 0; i<toLoad.size(); i++)
+			toLoad.get(i).setEntity(entities.get(i));
+	}
+	
+	/**
+	 * Turns on hedged reads for batch fetches. 
+	 * 
+	 * When hedging, a batch fetch doesn't always wait for memcache before going to the datastore. If memcache 
+	 * hasn't answered within deadlineMs, or the kinds being fetched usually miss memcache more often than 
+	 * missRateThreshold, the datastore batch get is started alongside memcache. Memcache is then given another 
+	 * deadlineMs to answer, and the datastore is only waited for if it doesn't or if it's missing some of the entities.
+	 * This trades extra datastore reads for lower latency when memcache is slow or cold.
+	 * 
+	 * @param enabled
+	 * @param deadlineMs
+	 * @param missRateThreshold Between 0 and 1.
+	 */
+	public static void setHedgedReads(boolean enabled, long deadlineMs, double missRateThreshold)
+	{
+		hedgedReadsEnabled = enabled;
+		hedgedReadDeadlineMs = deadlineMs;
+		hedgedReadMissRateThreshold = missRateThreshold;
+	}
+	
+	/**
+	 * @param kind
+	 * @return The recent memcache miss rate of batch fetches for the given kind, or 0 if not enough fetches have been seen yet.
+	 */
+	public static double getMemcacheMissRate(String kind)
+	{
+		KindHitRatio ratio = memcacheHitRatios.get(kind);
+		if (ratio==null) return 0;
+		return ratio.getMissRate();
+	}
+	
+	private static void recordMemcacheHits(List<Key> keys, Set<Key> hits)
+	{
+		Map<String, int[]> hitsAndMissesByKind = new HashMap<>();
+		for(Key key:keys)
+		{
+			int[] hitsAndMisses = hitsAndMissesByKind.get(key.getKind());
+			if (hitsAndMisses==null)
+			{
+				hitsAndMisses = new int[2];
+				hitsAndMissesByKind.put(key.getKind(), hitsAndMisses);
+			}
+			if (hits.contains(key))
+				hitsAndMisses[0]++;
+			else
+				hitsAndMisses[1]++;
+		}
+		
+		for(String kind:hitsAndMissesByKind.keySet())
+		{
+			KindHitRatio ratio = memcacheHitRatios.get(kind);
+			if (ratio==null)
+			{
+				memcacheHitRatios.putIfAbsent(kind, new KindHitRatio());
+				ratio = memcacheHitRatios.get(kind);
+			}
+			int[] hitsAndMisses = hitsAndMissesByKind.get(kind);
+			ratio.record(hitsAndMisses[0], hitsAndMisses[1]);
+		}
+	}
+	
+	private static double getExpectedMissRate(List<Key> keys)
+	{
+		if (keys.isEmpty()) return 0;
+		
+		double missRate = 0;
+		for(Key key:keys)
+			missRate += getMemcacheMissRate(key.getKind());
+		return missRate/keys.size();
+	}
+	
+	/**
+	 * When this is set above 0, a warning is logged when that many get(Key) calls are made in a row 
+	 * without any batch fetch in between. This helps find loops that should be using getLater() or 
+	 * get(Iterable<Key>) instead.
+	 * 
+	 * @param threshold 0 to turn the warning off.
+	 */
+	public static void setConsecutiveSingleGetWarningThreshold(int threshold)
+	{
+		consecutiveSingleGetWarningThreshold = threshold;
+	}
+	
+	private void trackSingleGet(Key entityKey)
+	{
+		int count = consecutiveSingleGets.incrementAndGet();
+		if (consecutiveSingleGetWarningThreshold>0 && count==consecutiveSingleGetWarningThreshold)
+			log.log(Level.WARNING, count+" get() calls were made in a row (the last one for "+entityKey+"). Consider batching them with getLater() or get(Iterable<Key>).", new RuntimeException("This is the stacktrace for the last get() call."));
+	}
+	
 	public CachedEntity get(Key entityKey) throws EntityNotFoundException
 	{
 		CachedEntity result;
 		if (entityKey==null) return null;
 		
+		trackSingleGet(entityKey);
+		
 		if (singleEntityMode)
 		{
 			result = getTrackedFetchedEntityThisRequest(entityKey);
 			if (result!=null) return result;
 		}
 		
-		if (cacheEnabled && isTransactionActive()==false)
+		if (cacheEnabled && isTransactionActive()==false && isMemcacheEnabledForKind(entityKey.getKind()))
 		{
-			result = CachedEntity.wrap((Entity)mc.get(mcPrefix+entityKey.toString()));
-			if (result==null)
+			awaitPostCommitCacheUpdatesFor(Arrays.asList(entityKey));
+			
+			Map<String, Long> generations = readKindGenerationsForKeys(Arrays.asList(entityKey));
+			String mcKey = toMemcacheKey(entityKey);
+			Object cachedValue = getFromInstanceCache(entityKey, mcKey);
+			if (cachedValue==null)
 			{
-				result = CachedEntity.wrap(db.get(entityKey));
-				if(result != null)
+				cachedValue = mc.get(mcKey);
+				if (isTombstone(cachedValue, entityKey))
 				{
-					mc.put(mcPrefix+entityKey.toString(), result.getEntity());
+					if (statsTracking)
+						incrementStat(MC_GETS);		// For statistics tracking of the cache's success
+					
+					putTombstonesToInstanceCache(Arrays.asList(entityKey), generations);
+					throw new EntityNotFoundException(entityKey);
 				}
-				if (statsTracking)
-					incrementStat(DS_GETS);		// For statistics tracking of the cache's success
+				
+				result = CachedEntity.wrap(toEntity(cachedValue, entityKey));
+				if (result==null)
+				{
+					if (statsTracking)
+						incrementStat(DS_GETS);		// For statistics tracking of the cache's success
+					
+					try
+					{
+						result = CachedEntity.wrap(loadEntityOnCacheMiss(entityKey));
+					}
+					catch(EntityNotFoundException e)
+					{
+						putTombstonesToInstanceCache(Arrays.asList(entityKey), generations);
+						throw e;
+					}
+				}
+				else
+				{
+					if (statsTracking)
+						incrementStat(MC_GETS);		// For statistics tracking of the cache's success
+				}
+				
+				updateInstanceCache(Arrays.asList(result.getEntity()), generations);
 			}
+			else if (isTombstone(cachedValue, entityKey))
+				throw new EntityNotFoundException(entityKey);
 			else
-			{
-				if (statsTracking)
-					incrementStat(MC_GETS);		// For statistics tracking of the cache's success
-			}
+				result = CachedEntity.wrap((Entity)cachedValue);
 		}
 		else
 		{
 			if (statsTracking)
 				incrementStat(DS_GETS);		// For statistics tracking of the cache's success
 			
-			result = CachedEntity.wrap(db.get(entityKey));
-			mc.put(mcPrefix+entityKey.toString(), result.getEntity());
+			result = CachedEntity.wrap(loadEntityWithLease(entityKey, false));
 			
 			// If the transaction is active, we want to include this entity in the list of transactionally fetched entities
 			addEntityToTransaction(entityKey);
@@ -954,15 +3252,24 @@ public class CachedDatastoreService
 	
 	private List<Key> fetchKeys(Query q, int limit)
 	{
+		QueryCacheLookup cacheLookup = startQueryCacheLookup(q, QueryCacheKeys.describe(q, limit));
+		if (cacheLookup!=null && cacheLookup.cachedResult instanceof List)
+		{
+			if (statsTracking)
+				incrementStat(MC_QUERIES);
+			lastQueryCursor.remove();
+			@SuppressWarnings("unchecked")
+			List<Key> cachedKeys = (List<Key>)cacheLookup.cachedResult;
+			return new ArrayList<>(cachedKeys);
+		}
+		
 		q.setKeysOnly();
 		
-		prepareQuery(q);
-
 		int chunkSize=limit;
 		FetchOptions fo = FetchOptions.Builder.withLimit(limit).chunkSize(chunkSize).prefetchSize(limit);
 
 		List<Key> keys = new ArrayList<>();
-		List<Entity> entities = pq.asList(fo);
+		List<Entity> entities = prepareQuery(q).asList(fo);
 		
 		int count = entities.size();
 		if (count>limit)
@@ -974,21 +3281,32 @@ public class CachedDatastoreService
 			keys.add(e.getKey());
 		}
 		
-		lastQuery_endCursor = null;
+		lastQueryCursor.remove();
 		
 		if (statsTracking)
 			incrementStat(QUERYKEYCACHE_QUERIES);
 		
+		if (cacheLookup!=null)
+			storeQueryCacheResult(cacheLookup, new ArrayList<>(keys));
 		
 		return keys;
 	}
 
-	private List<Key> fetchKeys(Query q, int limit, Cursor startCursor)
+	/**
+	 * Runs a keys-only query and returns the keys together with the cursor for the next page. Nothing is shared 
+	 * between calls, so this can be used from several threads at once.
+	 * 
+	 * Queries that start from a cursor are never cached, the cursor can point anywhere.
+	 * 
+	 * @param q
+	 * @param limit
+	 * @param startCursor The cursor of the previous page, or null to start from the beginning.
+	 * @return
+	 */
+	public QueryPage<Key> fetchKeysPage(Query q, int limit, Cursor startCursor)
 	{
 		q.setKeysOnly();
 		
-		prepareQuery(q);
-
 		int chunkSize=limit;
 		FetchOptions fo = FetchOptions.Builder.withLimit(limit).chunkSize(chunkSize);
 		if (startCursor!=null)
@@ -996,7 +3314,7 @@ public class CachedDatastoreService
 		
 
 		List<Key> keys = new ArrayList<>();
-		QueryResultList<Entity> entities = pq.asQueryResultList(fo);
+		QueryResultList<Entity> entities = prepareQuery(q).asQueryResultList(fo);
 		
 		int count = entities.size();
 		if (count>limit)
@@ -1008,27 +3326,23 @@ public class CachedDatastoreService
 			keys.add(e.getKey());
 		}
 		
-		lastQuery_endCursor = entities.getCursor();
-		
 		if (statsTracking)
 			incrementStat(QUERYKEYCACHE_QUERIES);
 		
 		
-		return keys;
+		return new QueryPage<>(keys, entities.getCursor());
 	}
 
 	private List<Key> fetchKeys(Query q, int limit, int offset)
 	{
 		q.setKeysOnly();
 		
-		prepareQuery(q);
-
 		int chunkSize = limit;
 		FetchOptions fo = FetchOptions.Builder.withLimit(limit).chunkSize(chunkSize).offset(offset);
 		
 
 		List<Key> keys = new ArrayList<>();
-		List<Entity> entities = pq.asList(fo);
+		List<Entity> entities = prepareQuery(q).asList(fo);
 
 		int count = entities.size();
 		if (count>limit)
@@ -1040,8 +3354,6 @@ public class CachedDatastoreService
 			keys.add(e.getKey());
 		}
 		
-		//lastQuery_endCursor = entities.getCursor();
-		
 		if (statsTracking)
 			incrementStat(QUERYKEYCACHE_QUERIES);
 		
@@ -1080,33 +3392,188 @@ public class CachedDatastoreService
 	public List<CachedEntity> fetchEntitiesFromKeys(Iterable<Key> keys)
 	{
 		if (keys==null) return null;
-		//////////
-		// First try to fetch all entities from memcache...
-
-		// Fetch the entities from MC, but only if caching is turned on and there is no transaction currently active
-		List<String> entityKeyStrings = new ArrayList<>();
-		Map<String, Object> entitiesFromMC = null;
-		if (cacheEnabled && isTransactionActive()==false)
+		
+		return new EntityFetch(keys).finish();
+	}
+	
+	/**
+	 * A batch entity fetch that has been started but not finished yet. 
+	 * 
+	 * Starting the fetch checks the instance cache and sends off the memcache request without waiting
+	 * for it. Finishing the fetch collects the memcache results and loads whatever is still missing 
+	 * from the datastore.
+	 */
+	private class EntityFetch
+	{
+		final List<Key> keys = new ArrayList<>();
+		// Every distinct key with its memcache key, so duplicate keys are only looked up once
+		final Map<Key, String> memcacheKeysByKey = new LinkedHashMap<>();
+		final boolean useCache;
+		// Each entity is only materialised once no matter how many times its key was given
+		final Map<Key, CachedEntity> found = new HashMap<>();
+		// Keys that one of the caches says don't exist
+		final Set<Key> knownMissing = new HashSet<>();
+		// Keys whose kind doesn't use memcache, these always go straight to the datastore
+		final Set<Key> uncachedKeys = new HashSet<>();
+		final List<Key> memcacheKeys = new ArrayList<>();
+		Future<Map<String, Object>> memcacheFuture = null;
+		Future<Map<Key, Entity>> hedgedDatastoreFuture = null;
+		// Read before anything else, see readKindGenerations()
+		Map<String, Long> generations = null;
+		
+		EntityFetch(Iterable<Key> keys)
 		{
+			consecutiveSingleGets.set(0);
+			
 			for(Key key:keys)
-				if (key!=null)
-					entityKeyStrings.add(mcPrefix+key.toString());
-			entitiesFromMC = mc.getAll(entityKeyStrings);
+			{
+				this.keys.add(key);
+				if (key!=null && memcacheKeysByKey.containsKey(key)==false)
+				{
+					memcacheKeysByKey.put(key, toMemcacheKey(key));
+					if (isMemcacheEnabledForKind(key.getKind())==false)
+						uncachedKeys.add(key);
+				}
+			}
+			
+			// Fetch the entities from MC, but only if caching is turned on and there is no transaction currently active.
+			// Entities that are already in the instance cache don't need to go to memcache at all.
+			useCache = cacheEnabled && isTransactionActive()==false;
+			if (useCache)
+			{
+				awaitPostCommitCacheUpdatesFor(memcacheKeysByKey.keySet());
+				generations = readKindGenerationsForKeys(memcacheKeysByKey.keySet());
+				
+				List<String> entityKeyStrings = new ArrayList<>();
+				for(Map.Entry<Key, String> entry:memcacheKeysByKey.entrySet())
+				{
+					if (uncachedKeys.contains(entry.getKey())) continue;
+					
+					Object instanceCachedValue = getFromInstanceCache(entry.getKey(), entry.getValue());
+					if (instanceCachedValue instanceof MemcacheTombstone)
+					{
+						knownMissing.add(entry.getKey());
+					}
+					else if (instanceCachedValue!=null)
+					{
+						found.put(entry.getKey(), CachedEntity.wrap((Entity)instanceCachedValue));
+					}
+					else
+					{
+						entityKeyStrings.add(entry.getValue());
+						memcacheKeys.add(entry.getKey());
+					}
+				}
+				
+				if (entityKeyStrings.isEmpty()==false)
+				{
+					memcacheFuture = startMemcacheGetAll(entityKeyStrings);
+					
+					// If these kinds usually aren't in memcache anyway, don't bother waiting to find out
+					if (hedgedReadsEnabled && getExpectedMissRate(memcacheKeys)>=hedgedReadMissRateThreshold)
+						hedgedDatastoreFuture = startDatastoreGet(memcacheKeys);
+				}
+			}
 		}
 		
-		if (entitiesFromMC!=null)
-			if (statsTracking)
-				incrementStat(QUERYKEYCACHE_MC_ENTITIES, entitiesFromMC.size());
+		/**
+		 * Turns a memcache getAll() result into entities keyed by their Key. Slots that contain
+		 * markers instead of entities are left out.
+		 * 
+		 * @param memcacheValues
+		 * @param tombstonedKeys If not null, the keys whose slots held a tombstone are added to this.
+		 * @return
+		 */
+		private Map<Key, Entity> toEntitiesByKey(Map<String, Object> memcacheValues, Set<Key> tombstonedKeys)
+		{
+			Map<Key, Entity> entities = new HashMap<>();
+			for(Key key:memcacheKeys)
+			{
+				Object value = memcacheValues.get(memcacheKeysByKey.get(key));
+				Entity entity = toEntity(value, key);
+				if (entity!=null)
+					entities.put(key, entity);
+				else if (tombstonedKeys!=null && isTombstone(value, key))
+					tombstonedKeys.add(key);
+			}
+			return entities;
+		}
 		
-		// Now check to see if we got all the entities we need...
-		List<Key> keysThatStillNeedFetching = new ArrayList<>();
-		for(Key key:keys)
+		List<CachedEntity> finish()
 		{
-			if (key==null) continue;
+			Map<Key, Entity> entitiesFromMC = null;
+			Map<Key, Entity> entitiesFromHedgedDB = null;
+			if (memcacheFuture!=null)
+			{
+				Map<String, Object> memcacheValues = null;
+				if (hedgedReadsEnabled && hedgedDatastoreFuture==null)
+				{
+					memcacheValues = getMemcacheResult(memcacheFuture, hedgedReadDeadlineMs);
+					
+					// Memcache is taking too long, so we'll race it against the datastore
+					if (memcacheValues==null)
+						hedgedDatastoreFuture = startDatastoreGet(memcacheKeys);
+				}
+				
+				// While hedging, memcache gets until the deadline to answer (a second time if the hedge was started because 
+				// it missed the deadline already). Past that the datastore's answer is used instead.
+				if (hedgedDatastoreFuture!=null && memcacheValues==null)
+					memcacheValues = getMemcacheResult(memcacheFuture, hedgedReadDeadlineMs);
+				else if (memcacheValues==null)
+					memcacheValues = getMemcacheResult(memcacheFuture);
+				
+				Set<Key> hits = new HashSet<>();
+				if (memcacheValues!=null)
+				{
+					Set<Key> tombstonedKeys = new HashSet<>();
+					entitiesFromMC = toEntitiesByKey(memcacheValues, tombstonedKeys);
+					
+					hits.addAll(entitiesFromMC.keySet());
+					hits.addAll(tombstonedKeys);
+					recordMemcacheHits(memcacheKeys, hits);
+					
+					for(Key key:entitiesFromMC.keySet())
+						found.put(key, CachedEntity.wrap(entitiesFromMC.get(key)));
+					updateInstanceCache(entitiesFromMC.values(), generations);
+					
+					knownMissing.addAll(tombstonedKeys);
+					putTombstonesToInstanceCache(tombstonedKeys, generations);
+				}
+				
+				// The hedged read is only waited for if memcache didn't answer in time or missed some of the keys. If 
+				// memcache had everything it's simply abandoned.
+				if (hedgedDatastoreFuture!=null && (memcacheValues==null || hits.size()<memcacheKeys.size()))
+				{
+					entitiesFromHedgedDB = getHedgedDatastoreResult(hedgedDatastoreFuture);
+					
+					// We don't want to lose track of the hit ratio just because the datastore won
+					if (memcacheValues==null && memcacheFuture.isDone())
+						recordMemcacheHits(memcacheKeys, toEntitiesByKey(getMemcacheResult(memcacheFuture), null).keySet());
+				}
+				
+				if (entitiesFromHedgedDB!=null)
+					fillMemcacheFromHedgedRead(entitiesFromMC, entitiesFromHedgedDB, generations);
+			}
+			
+			if (entitiesFromMC!=null)
+				if (statsTracking)
+					incrementStat(QUERYKEYCACHE_MC_ENTITIES, entitiesFromMC.size());
 			
-			String requiredKeyString = mcPrefix+key.toString();
-			if (entitiesFromMC==null || entitiesFromMC.containsKey(requiredKeyString)==false)
+			// Now check to see if we got all the entities we need...
+			List<Key> keysThatStillNeedFetching = new ArrayList<>();
+			for(Key key:memcacheKeysByKey.keySet())
 			{
+				if (found.containsKey(key) || knownMissing.contains(key)) continue;
+				
+				// The hedged datastore read already answered for this key (it covers every key that was sent to memcache), whether or not the entity exists
+				if (entitiesFromHedgedDB!=null && uncachedKeys.contains(key)==false)
+				{
+					Entity hedgedEntity = entitiesFromHedgedDB.get(key);
+					if (hedgedEntity!=null)
+						found.put(key, CachedEntity.wrap(hedgedEntity));
+					continue;
+				}
+				
 				// Oh, the memcache didn't have this entity, add it to the list we need to grab from the DB
 				
 				// HOWEVER, If we're using singleEntityMode, see if any of these entities are in our local request cache and use those entities instead of fetching them again
@@ -1115,76 +3582,249 @@ public class CachedDatastoreService
 					CachedEntity alreadyFetchedEntity = getTrackedFetchedEntityThisRequest(key);
 					if (alreadyFetchedEntity!=null)
 					{
-						if (entitiesFromMC==null) entitiesFromMC = new HashMap<>();
-						entitiesFromMC.put(requiredKeyString, alreadyFetchedEntity.getEntity());
+						found.put(key, alreadyFetchedEntity);
 						continue;
 					}
-						
 				}
 				
 				keysThatStillNeedFetching.add(key);
 			}
+	
+	
+			
+			// Now grab the missing entities from the DB...
+			if (keysThatStillNeedFetching.isEmpty()==false)
+			{
+				// The leases must be taken before reading the datastore, see loadEntityWithLease()
+				List<String> keyStringsThatStillNeedFetching = new ArrayList<>();
+				for(Key key:keysThatStillNeedFetching)
+					if (uncachedKeys.contains(key)==false)
+						keyStringsThatStillNeedFetching.add(memcacheKeysByKey.get(key));
+				Map<String, IdentifiableValue> fillLeases = new HashMap<>();
+				if (keyStringsThatStillNeedFetching.isEmpty()==false)
+					fillLeases = acquireFillLeases(keyStringsThatStillNeedFetching);
+				
+				Map<Key,Entity> entitiesFromDB = getFromDatastore(keysThatStillNeedFetching);
+				
+				// Here we're going to keep track of the entities that were fetched while inside of the transaction. We will then throw 
+				// later if we try to put an entity that wasn't fetched within the transaction.
+				addEntityToTransaction(keysThatStillNeedFetching);
+				
+				if (entitiesFromDB!=null) {
+					if (statsTracking)
+						incrementStat(QUERYKEYCACHE_DB_ENTITIES, entitiesFromDB.size());
+	
+					for(Key key:entitiesFromDB.keySet())
+						found.put(key, CachedEntity.wrap(entitiesFromDB.get(key)));
+					
+					List<Key> missingKeys = new ArrayList<>();
+					for(Key key:keysThatStillNeedFetching)
+						if (entitiesFromDB.containsKey(key)==false)
+							missingKeys.add(key);
+					
+					// Add these entities (and tombstones for the ones that don't exist) to memcache right away
+					fillMemcacheWithLeases(fillLeases, entitiesFromDB.values(), missingKeys);
+					
+					if (useCache)
+					{
+						updateInstanceCache(entitiesFromDB.values(), generations);
+						putTombstonesToInstanceCache(missingKeys, generations);
+					}
+				}
+			}
+				
+	
+			// Now put everything into a single result in the same order as the keys we were given
+			List<CachedEntity> result = new ArrayList<>(keys.size());
+			for(Key key:keys)
+			{
+				if (key==null) 
+					result.add(null);
+				else
+					result.add(found.get(key));
+			}
+			
+			return result;
+		}
+	}
+	
+	/**
+	 * Waits for an async memcache batch get. If memcache fails we just log it and carry on as if 
+	 * memcache was empty, same as the synchronous memcache service does.
+	 * 
+	 * @param future
+	 * @return
+	 */
+	private Map<String, Object> getMemcacheResult(Future<Map<String, Object>> future)
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return new HashMap<>();
+		}
+		catch (ExecutionException e)
+		{
+			log.log(Level.WARNING, "Memcache batch get failed. Falling back to the datastore.", e.getCause());
+			return new HashMap<>();
+		}
+	}
+	
+	/**
+	 * Same as getMemcacheResult() but gives up after the given timeout.
+	 * 
+	 * @param future
+	 * @param timeoutMs
+	 * @return The result, or null if memcache didn't answer in time.
+	 */
+	private Map<String, Object> getMemcacheResult(Future<Map<String, Object>> future, long timeoutMs)
+	{
+		try
+		{
+			return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e)
+		{
+			return null;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return new HashMap<>();
+		}
+		catch (ExecutionException e)
+		{
+			log.log(Level.WARNING, "Memcache batch get failed. Falling back to the datastore.", e.getCause());
+			return new HashMap<>();
+		}
+	}
+	
+	/**
+	 * @param future
+	 * @return The hedged datastore result, or null if it failed in which case the entities will be fetched the normal way.
+	 */
+	private Map<Key, Entity> getHedgedDatastoreResult(Future<Map<Key, Entity>> future)
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (ExecutionException e)
+		{
+			log.log(Level.WARNING, "Hedged datastore read failed.", e.getCause());
+			return null;
+		}
+	}
+	
+	/**
+	 * Puts the entities that came from a hedged datastore read into the caches. 
+	 * 
+	 * The datastore read was started without fill leases (taking them would mean waiting on memcache, which is
+	 * what hedging is trying to avoid), so the fill only adds to empty slots. Writers always leave something in 
+	 * the slot, puts leave the entity and deletes leave a tombstone (see deleteEntitiesFromMemcache()), so the 
+	 * fill can't overwrite or bring back anything that changed after the read, as long as the read didn't take 
+	 * longer than the tombstone lives.
+	 * 
+	 * @param entitiesFromMC What memcache returned, or null if the datastore answered first.
+	 * @param entitiesFromHedgedDB
+	 * @param generations The kind generations read before the fetch started.
+	 */
+	private void fillMemcacheFromHedgedRead(Map<Key, Entity> entitiesFromMC, Map<Key, Entity> entitiesFromHedgedDB, Map<String, Long> generations)
+	{
+		List<Entity> filledEntities = new ArrayList<>();
+		for(Entity entity:entitiesFromHedgedDB.values())
+			if (entitiesFromMC==null || entitiesFromMC.containsKey(entity.getKey())==false)
+				filledEntities.add(entity);
+		
+		if (filledEntities.isEmpty())
+			return;
+		
+		for(Map.Entry<Long, List<Entity>> group:groupByMemcacheTtl(filledEntities).entrySet())
+		{
+			Expiration expiration = toExpiration(group.getKey());
+			Map<String, Object> fills = new HashMap<>();
+			Map<String, PendingMemcacheChunks> pendingChunks = new HashMap<>();
+			for(Entity entity:group.getValue())
+			{
+				String mcKey = toMemcacheKey(entity.getKey());
+				fills.put(mcKey, toMemcacheValue(mcKey, entity, expiration, pendingChunks));
+			}
+			
+			// Only oversized values need to know whether the add worked, the rest of the fills aren't waited for
+			if (pendingChunks.isEmpty())
+				asyncMc.putAll(fills, expiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+			else
+				writePendingChunks(pendingChunks, mc.putAll(fills, expiration, SetPolicy.ADD_ONLY_IF_NOT_PRESENT));
 		}
-
-
+		updateInstanceCache(filledEntities, generations);
+	}
+	
+	/**
+	 * Starts fetching the given entity and returns right away so other lookups can be started
+	 * while this one is running. The memcache request is sent immediately, anything that has to 
+	 * come from the datastore is loaded when get() is called on the returned future.
+	 * 
+	 * Like getIfExists(), the future's value is null if the entity doesn't exist.
+	 * 
+	 * @param entityKey
+	 * @return
+	 */
+	public Future<CachedEntity> getAsync(Key entityKey)
+	{
+		if (entityKey==null)
+			return DeferredFuture.of(null);
 		
-		// Now grab the missing entities from the DB...
-		Map<Key,Entity> entitiesFromDB = null;
-		if (keysThatStillNeedFetching.isEmpty()==false)
+		if (singleEntityMode)
 		{
-			entitiesFromDB = db.get(keysThatStillNeedFetching);
-			
-			// Here we're going to keep track of the entities that were fetched while inside of the transaction. We will then throw 
-			// later if we try to put an entity that wasn't fetched within the transaction.
-			addEntityToTransaction(keysThatStillNeedFetching);
-			
-			if (entitiesFromDB!=null) {
-				if (statsTracking)
-					incrementStat(QUERYKEYCACHE_DB_ENTITIES, entitiesFromDB.size());
-
-				// Add these entities to memcache right away
-				putEntitiesToMemcache(entitiesFromDB.values());
-			}
+			CachedEntity result = getTrackedFetchedEntityThisRequest(entityKey);
+			if (result!=null) return DeferredFuture.of(result);
 		}
-			
-
-		// Now combine both lists into a single ordered result..
-		List<CachedEntity> result = new ArrayList<>();
-		for(Key key:keys)
+		
+		final EntityFetch fetch = new EntityFetch(Arrays.asList(entityKey));
+		return new DeferredFuture<CachedEntity>()
 		{
-			if (key==null) 
-			{
-				result.add(null);
-				continue;
-			}
-			CachedEntity mcEntity = null;
-			CachedEntity dbEntity = null;
-			if (entitiesFromMC!=null && entitiesFromMC.isEmpty()==false)
-			{
-				String keyString = mcPrefix+key.toString();
-				mcEntity = CachedEntity.wrap((Entity)entitiesFromMC.get(keyString));
-			}
-			if (entitiesFromDB!=null && entitiesFromDB.isEmpty()==false)
-			{
-				dbEntity = CachedEntity.wrap(entitiesFromDB.get(key));
-			}
-			
-			if (mcEntity!=null && dbEntity!=null)
-				throw new IllegalStateException("Both the memcache and the datastore entities were fetched. This shouldn't ever happen.");
-			
-			if (mcEntity!=null)
+			@Override
+			protected CachedEntity resolve()
 			{
-				result.add(mcEntity);
+				CachedEntity result = fetch.finish().get(0);
+				if (singleEntityMode && result!=null)
+					trackFetchedEntityThisRequest(result);
+				return result;
 			}
-			else if (dbEntity!=null)
+		};
+	}
+	
+	/**
+	 * Starts fetching the given entities and returns right away, see getAsync(Key).
+	 * 
+	 * The result is in the same order as the given keys and includes nulls for keys that are null or 
+	 * entities that don't exist.
+	 * 
+	 * @param keys
+	 * @return
+	 */
+	public Future<List<CachedEntity>> getAsync(Iterable<Key> keys)
+	{
+		if (keys==null)
+			return DeferredFuture.of(null);
+		
+		final EntityFetch fetch = new EntityFetch(keys);
+		return new DeferredFuture<List<CachedEntity>>()
+		{
+			@Override
+			protected List<CachedEntity> resolve()
 			{
-				result.add(dbEntity);
+				return fetch.finish();
 			}
-			else
-				result.add(null);
-		}
-		
-		return result;
+		};
 	}
 	
 	
@@ -1225,8 +3865,7 @@ public class CachedDatastoreService
 	{
 		Query q = new Query(kind);
 		q.setFilter(filter);
-		List<Key> keys = fetchKeys(q, limit, startEntityCursor);
-		return fetchEntitiesFromKeys(keys);
+		return fetchAsList(q, limit, startEntityCursor);
 	}
 	
 	
@@ -1240,19 +3879,178 @@ public class CachedDatastoreService
 	
 	public List<CachedEntity> fetchAsList(Query q, int limit)
 	{
+		if (isScanOnlyQuery(q))
+		{
+			lastQueryCursor.remove();
+			return scanEntities(q, FetchOptions.Builder.withLimit(limit).chunkSize(limit).prefetchSize(limit), limit).getResults();
+		}
+		
 		List<Key> keys = fetchKeys(q, limit);
 		return fetchEntitiesFromKeys(keys);
 	}
+	
+	/**
+	 * @param q
+	 * @return True if the query's kind is scan-only, see CachePolicy.isScanOnly().
+	 */
+	private boolean isScanOnlyQuery(Query q)
+	{
+		return q.getKind()!=null && getCachePolicy(q.getKind()).isScanOnly();
+	}
+	
+	/**
+	 * Runs the query for the entities themselves instead of just their keys. This is used for scan-only 
+	 * kinds, the results bypass the caches completely.
+	 * 
+	 * @param q
+	 * @param fo
+	 * @param limit
+	 * @return
+	 */
+	private QueryPage<CachedEntity> scanEntities(Query q, FetchOptions fo, int limit)
+	{
+		q.clearKeysOnly();
+		
+		QueryResultList<Entity> entities = prepareQuery(q).asQueryResultList(fo);
+		
+		List<CachedEntity> result = new ArrayList<>();
+		List<Key> keys = new ArrayList<>();
+		for(Entity entity:entities)
+		{
+			if (result.size()>=limit) break;
+			result.add(CachedEntity.wrap(entity));
+			keys.add(entity.getKey());
+		}
+		
+		addEntityToTransaction(keys);
+		
+		if (statsTracking)
+		{
+			incrementStat(QUERIES);
+			incrementStat(QUERY_ENTITIES, result.size());
+		}
+		
+		return new QueryPage<>(result, entities.getCursor());
+	}
+	
+	public Future<List<CachedEntity>> fetchAsListAsync(String kind, Filter filter, int limit)
+	{
+		Query q = new Query(kind);
+		q.setFilter(filter);
+		return fetchAsListAsync(q, limit);
+	}
+	
+	/**
+	 * Starts running the given query and returns right away so other lookups can be started while
+	 * this one is running. The keys-only query is sent to the datastore immediately, the entities 
+	 * themselves are fetched (from the caches where possible) when get() is called on the returned future.
+	 * 
+	 * @param q
+	 * @param limit
+	 * @return
+	 */
+	public Future<List<CachedEntity>> fetchAsListAsync(Query q, final int limit)
+	{
+		// Scan-only kinds fetch the entities in the query itself
+		final boolean scanOnly = isScanOnlyQuery(q);
+		if (scanOnly)
+			q.clearKeysOnly();
+		else
+			q.setKeysOnly();
+		
+		FetchOptions fo = FetchOptions.Builder.withLimit(limit).chunkSize(limit).prefetchSize(limit);
+		// The async datastore sends the query off as soon as the list is created
+		final List<Entity> queryEntities = asyncDb.prepare(q).asList(fo);
+		
+		return new DeferredFuture<List<CachedEntity>>()
+		{
+			@Override
+			protected List<CachedEntity> resolve()
+			{
+				if (scanOnly)
+				{
+					List<CachedEntity> result = new ArrayList<>();
+					List<Key> keys = new ArrayList<>();
+					for(Entity e:queryEntities)
+					{
+						if (result.size()>=limit) break;
+						result.add(CachedEntity.wrap(e));
+						keys.add(e.getKey());
+					}
+					addEntityToTransaction(keys);
+					
+					if (statsTracking)
+					{
+						incrementStat(QUERIES);
+						incrementStat(QUERY_ENTITIES, result.size());
+					}
+					
+					return result;
+				}
+				
+				List<Key> keys = new ArrayList<>();
+				for(Entity e:queryEntities)
+				{
+					if (keys.size()>=limit) break;
+					keys.add(e.getKey());
+				}
+				
+				if (statsTracking)
+					incrementStat(QUERYKEYCACHE_QUERIES);
+				
+				return fetchEntitiesFromKeys(keys);
+			}
+		};
+	}
 
+	/**
+	 * Use fetchPage() instead, it returns the cursor along with the entities.
+	 */
 	public List<CachedEntity> fetchAsList(Query q, int limit, Cursor startEntityCursor)
 	{
-		List<Key> keys = fetchKeys(q, limit, startEntityCursor);
-		return fetchEntitiesFromKeys(keys);
+		QueryPage<CachedEntity> page = fetchPage(q, limit, startEntityCursor);
+		lastQueryCursor.set(page.getEndCursor());
+		return page.getResults();
+	}
+	
+	/**
+	 * Runs the query and returns the entities together with the cursor for the next page. Nothing is shared 
+	 * between calls, so this can be used from several threads at once.
+	 * 
+	 * @param q
+	 * @param limit
+	 * @param startCursor The cursor of the previous page, or null to start from the beginning.
+	 * @return
+	 */
+	public QueryPage<CachedEntity> fetchPage(Query q, int limit, Cursor startCursor)
+	{
+		if (isScanOnlyQuery(q))
+		{
+			FetchOptions fo = FetchOptions.Builder.withLimit(limit).chunkSize(limit);
+			if (startCursor!=null)
+				fo = fo.startCursor(startCursor);
+			return scanEntities(q, fo, limit);
+		}
+		
+		QueryPage<Key> keys = fetchKeysPage(q, limit, startCursor);
+		return new QueryPage<>(fetchEntitiesFromKeys(keys.getResults()), keys.getEndCursor());
+	}
+	
+	public QueryPage<CachedEntity> fetchPage(String kind, Filter filter, int limit, Cursor startCursor)
+	{
+		Query q = new Query(kind);
+		q.setFilter(filter);
+		return fetchPage(q, limit, startCursor);
 	}
 
+	/**
+	 * Use fetchKeysPage() instead, it returns the cursor along with the keys.
+	 */
 	public List<Key> fetchAsList_Keys(Query q, int limit, Cursor startEntityCursor)
 	{
-		return fetchKeys(q, limit, startEntityCursor);
+		QueryPage<Key> page = fetchKeysPage(q, limit, startEntityCursor);
+		lastQueryCursor.set(page.getEndCursor());
+		return page.getResults();
 	}
 
 	public List<Key> fetchAsList_Keys(Query q, int limit)
@@ -1262,6 +4060,9 @@ public class CachedDatastoreService
 
 	public List<CachedEntity> fetchAsList(Query q, int limit, int offset)
 	{
+		if (isScanOnlyQuery(q))
+			return scanEntities(q, FetchOptions.Builder.withLimit(limit).chunkSize(limit).offset(offset), limit).getResults();
+		
 		List<Key> keys = fetchKeys(q, limit, offset);
 		return fetchEntitiesFromKeys(keys);
 	}
@@ -1327,28 +4128,22 @@ public class CachedDatastoreService
 	
 	public Iterable<CachedEntity> fetchAsIterable(Query q) {
 		
-		prepareQuery(q);
-		
-		return new CDSIterable(pq.asIterable(FetchOptions.Builder.withChunkSize(500)));
+		return new CDSIterable(prepareQuery(q).asIterable(FetchOptions.Builder.withChunkSize(500)), isScanOnlyQuery(q));
 	}
 	
 	public Iterable<CachedEntity> fetchAsIterable(Query q, boolean noCache) {
 		
-		prepareQuery(q);
-		
-		return new CDSIterable(pq.asIterable(FetchOptions.Builder.withChunkSize(500)), noCache);
+		return new CDSIterable(prepareQuery(q).asIterable(FetchOptions.Builder.withChunkSize(500)), noCache || isScanOnlyQuery(q));
 	}
 	
 	public Iterable<CachedEntity> fetchAsIterable(Query q, int offset) {
 		
-		prepareQuery(q);
-		
-		return new CDSIterable(pq.asIterable(FetchOptions.Builder.withChunkSize(500).offset(offset)));
+		return new CDSIterable(prepareQuery(q).asIterable(FetchOptions.Builder.withChunkSize(500).offset(offset)), isScanOnlyQuery(q));
 	}
 	
-	public void prepareQuery(Query q)
+	public PreparedQuery prepareQuery(Query q)
 	{
-		pq = db.prepare(q);
+		return db.prepare(q);
 	}
 
 	public KeyRange allocateIds(Key parentKey, String kind, int num) {
@@ -1364,24 +4159,31 @@ public class CachedDatastoreService
 	}
 	
 	public long countEntities(Query query, Integer limit) {
+		QueryCacheLookup cacheLookup = startQueryCacheLookup(query, QueryCacheKeys.describeCount(query, limit));
+		if (cacheLookup!=null && cacheLookup.cachedResult instanceof Long)
+			return (Long)cacheLookup.cachedResult;
+		
 		FetchOptions fo = FetchOptions.Builder.withDefaults();
 		if (limit!=null)
 			fo.limit(limit);
 
-		return db.prepare(query).countEntities(fo);
+		long count = db.prepare(query).countEntities(fo);
+		
+		if (cacheLookup!=null)
+			storeQueryCacheResult(cacheLookup, count);
+		
+		return count;
 	}
 	
 	private void addToDeletedKeysList(Key key)
 	{
 		if (key==null) throw new IllegalArgumentException("Key cannot be null.");
-		if (entitiesDeletedThisRequest==null) entitiesDeletedThisRequest = new HashSet<String>();
+		if (entitiesDeletedThisRequest==null) entitiesDeletedThisRequest = new HashSet<Key>();
 		
-		String keyString = key.toString();
-		
-		if (entitiesPutThisRequest.contains(keyString))
+		if (isEntityPutThisRequest(key))
 			throw new IllegalStateException("Attempted to delete an entity that was already put in this request.");
 		
-		entitiesDeletedThisRequest.add(keyString);
+		entitiesDeletedThisRequest.add(key);
 	}
 	
 	private void addToDeletedKeysList(Collection<Key> keys)
@@ -1425,21 +4227,45 @@ public class CachedDatastoreService
 		{
 			entitiesToBulkDelete.removeAll(keys);
 			entitiesToBulkDelete.addAll(keys);
+			flushBulkWriteIfFull();
 			return;
 		}
 		
-		db.delete(keys);
-		
-		if (cacheEnabled && isTransactionActive())
+		if (isTransactionActive())
 		{
 			for(Key key:keys)
-				markEntityDeleted(key);
+				bufferTransactionalDelete(key);
+			return;
+		}
+		
+		delete(keys, null);
+	}
+	
+	/**
+	 * @param keys
+	 * @param bulkWriteSummary If not null, the datastore deletes are recorded here and a failed chunk doesn't throw. The caches are only updated for the chunks that were deleted.
+	 */
+	private void delete(Collection<Key> keys, BulkWriteSummary bulkWriteSummary)
+	{
+		// A buffered or running put must not bring the entity back after it's deleted
+		awaitWriteBehindBatches(keys, true);
+		
+		if (bulkWriteSummary==null)
+		{
+			deleteFromDatastore(keys);
 		}
 		else
 		{
-			deleteEntitiesFromMemcache(keys);
+			List<Key> deletedKeys = new ArrayList<>(keys);
+			deletedKeys.removeAll(new HashSet<>(deleteFromDatastore(keys, bulkWriteSummary)));
+			keys = deletedKeys;
 		}
 		
+		deleteEntitiesFromMemcache(keys);
+		Set<String> queryCacheCounters = new HashSet<>();
+		addQueryCacheInvalidationsForDeletes(keys, queryCacheCounters);
+		bumpKindGenerationsForKeys(keys, queryCacheCounters);
+		deleteEntitiesFromInstanceCache(keys);
 	}
 	
 	public void delete(Key entityKey)
@@ -1451,24 +4277,37 @@ public class CachedDatastoreService
 		{
 			entitiesToBulkDelete.remove(entityKey);
 			entitiesToBulkDelete.add(entityKey);
+			flushBulkWriteIfFull();
+			return;
+		}
+		
+		if (isTransactionActive())
+		{
+			bufferTransactionalDelete(entityKey);
 			return;
 		}
 		
+		// A buffered or running put must not bring the entity back after it's deleted
+		awaitWriteBehindBatches(Arrays.asList(entityKey), true);
 		
 		db.delete(entityKey);
 		
-		if (cacheEnabled && isTransactionActive())
-			markEntityDeleted(entityKey);
-		else
-			deleteEntityFromMemcache(entityKey);
-		
-//		reportDeletedEntity(entityKey);
+		deleteEntityFromMemcache(entityKey);
+		Set<String> queryCacheCounters = new HashSet<>();
+		addQueryCacheInvalidationsForDeletes(Arrays.asList(entityKey), queryCacheCounters);
+		bumpKindGenerations(Arrays.asList(entityKey.getKind()), queryCacheCounters);
+		deleteEntitiesFromInstanceCache(Arrays.asList(entityKey));
 	}
 	
 
+	/**
+	 * @return The end cursor of the last query this thread ran with a start cursor through fetchAsList() or fetchAsList_Keys().
+	 * @deprecated Use fetchPage() or fetchKeysPage() instead, they return the cursor along with the results.
+	 */
+	@Deprecated
 	public Cursor getLastQueryCursor()
 	{
-		return lastQuery_endCursor;
+		return lastQueryCursor.get();
 	}
 	
 	
@@ -1871,136 +4710,154 @@ public class CachedDatastoreService
 	////////////////////////////
 	// QUERY CACHE FUNCTIONS
 
-//	Map<String, Map<String,Object>> oldEntityValues = new HashMap<String, Map<String,Object>>();
-//
-//	/**
-//	 * This is supposed to be called every time an entity is get() from the database or memcache. We need it
-//	 * because we use the "oldEntityValues" to compare field values on put to know which fields were changed
-//	 * and what they were changed to. This is necessary to properly invalidate QueryModels. 
-//	 * @param list
-//	 */
-//	protected void addEntityValuesToOldEntityValuesMap(List<Entity> list)
-//	{
-//		for(Entity entity:list)
-//			addEntityValuesToOldEntityValuesMap(entity);
-//	}
-//	
-//	protected void addEntityValuesToOldEntityValuesMap(Entity entity)
-//	{
-//		if (entity==null) return;
-//		Map<String,Object> copy = new HashMap<String,Object>();
-//		copy.putAll(entity.getProperties());
-//		oldEntityValues.put(entity.getKey().toString(), copy);
-//	}
-//	
-//	private void reportNewEntity(Entity entity)
-//	{
-//		for(String fieldName:entity.getProperties().keySet())
-//		{
-//			reportEntityPropertyChange(entity, fieldName);
-//		}
-//	}
-//	
-//	private void reportDeletedEntity(Key entity)
-//	{
-//		if (queryModelCacheEnabled==false)
-//			return;
-//		Map<String,Object> oldValues = oldEntityValues.get(entity.toString());
-//		if (oldValues==null) throw new IllegalStateException("Entity "+entity+" did not have it's old property values stored.");
-//		
-//		for(String fieldName:oldValues.keySet())
-//		{
-//			reportEntityPropertyChange(entity.getKind(), fieldName, oldValues.get(fieldName));
-//		}
-//	}
-//	
-//	private void detectAndReportEntityPropertyChange(Entity entity)
-//	{
-//		if (queryModelCacheEnabled==false)
-//			return;
-//		Map<String,Object> oldValues = oldEntityValues.get(entity.getKey().toString());
-//		if (oldValues==null) throw new IllegalStateException("Entity "+entity+" did not have it's old property values stored.");
-//		
-//		for(String fieldName:entity.getProperties().keySet())
-//		{
-//			if (ObjectUtils.equals(entity.getProperty(fieldName), oldValues)==false)
-//				reportEntityPropertyChange(entity, fieldName);
-//		}
-//	}
-//	
-//	private void reportEntityPropertyChange(String kind, String fieldName, Object value, Object oldValue)
-//	{
-//		Set<String> queryModelIds_oldValues = null;
-//
-//		String qmfKeyOld = QueryModel.generateQueryModelFilterKey(kind, fieldName, oldValue);
-//		queryModelIds_oldValues = getQueryModelIdsFor(qmfKeyOld);
-//		
-//		String qmfKey = QueryModel.generateQueryModelFilterKey(kind, fieldName, value);
-//		
-//		Set<String> queryModelIds = getQueryModelIdsFor(qmfKey);
-//		queryModelIds.addAll(queryModelIds_oldValues);
-//		
-//		// Now we're going to delete the queryModels that were invalidated due to this change...
-//		deleteQueryModels(queryModelIds);
-//	}
-//	
-//	
-//	private void reportEntityPropertyChange(String kind, String fieldName, Object value)
-//	{
-//		String qmfKey = QueryModel.generateQueryModelFilterKey(kind, fieldName, value);
-//		Set<String> queryModelIds = getQueryModelIdsFor(qmfKey);
-//		
-//		// Now we're going to delete the queryModels that were invalidated due to this change...
-//		deleteQueryModels(queryModelIds);
-//	}
-//	
-//	
-//	private void reportEntityPropertyChange(Entity entity, String fieldName)
-//	{
-//		Map<String,Object> oldValues = oldEntityValues.get(entity.getKey().toString());
-//		
-//		
-//		String kind = entity.getKind();
-//		Object value = entity.getProperty(fieldName);
-//		if (oldValues!=null)
-//		{
-//			Object oldValue = oldValues.get(fieldName);
-//			reportEntityPropertyChange(kind, fieldName, value, oldValue);
-//		}
-//		else
-//			reportEntityPropertyChange(kind, fieldName, value);
-//			
-//	}
-//	
-//	private void deleteQueryModels(Set<String> queryModelIds)
-//	{
-////		Iterator<String> iterator = queryModelIds.iterator();
-////		while(iterator.hasNext())
-////		{
-////			if (clearedQueryModelIds.contains(iterator.next()))
-////				iterator.remove();
-////		}
-//		
-////		if (queryModelIds.size()>0)
-////		{
-//			mc.deleteAll(queryModelIds);
-////			clearedQueryModelIds.addAll(queryModelIds);
-////		}
-//		
-//	}
-//	
-//	private Set<String> getQueryModelIdsFor(String qmfKey)
-//	{
-//		@SuppressWarnings("unchecked")
-//		Set<String> queryModels = (Set<String>)mc.get(qmfKey);
-//		if (queryModels==null)
-//			queryModels = new HashSet<String>();
-//		
-//		return queryModels;
-//	}
+	/**
+	 * A query cache lookup made before running a query. If the query wasn't cached (or the cached result is 
+	 * no longer valid) this holds what is needed to store the result once the query has run.
+	 */
+	private static class QueryCacheLookup
+	{
+		final String resultKey;
+		final String description;
+		final Map<String, Long> stamps;
+		final long ttlMs;
+		Serializable cachedResult = null;
+		
+		QueryCacheLookup(String resultKey, String description, Map<String, Long> stamps, long ttlMs)
+		{
+			this.resultKey = resultKey;
+			this.description = description;
+			this.stamps = stamps;
+			this.ttlMs = ttlMs;
+		}
+	}
 	
+	/**
+	 * Looks the query up in the query cache. The cached result and the counters it depends on are fetched 
+	 * in a single memcache call. The counters are read before the query runs, so any write that lands 
+	 * in between will make the result we store invalid right away.
+	 * 
+	 * @param q
+	 * @param description The query's description, see QueryCacheKeys.describe().
+	 * @return The lookup, or null if this query can't be cached.
+	 */
+	private QueryCacheLookup startQueryCacheLookup(Query q, String description)
+	{
+		if (queryModelCacheEnabled==false || isTransactionActive() || q.getKind()==null || description==null)
+			return null;
+		
+		CachePolicy policy = getCachePolicy(q.getKind());
+		if (policy.isWriteBehind())
+			return null;
+		
+		Set<String> counterKeys;
+		if (policy.getQueryCacheMode()==QueryCacheMode.PROPERTY)
+			counterKeys = QueryCacheKeys.getPropertyCounterKeys(q);
+		else if (policy.getQueryCacheMode()==QueryCacheMode.KIND_GENERATION)
+			counterKeys = new HashSet<>(Arrays.asList(KIND_GENERATION_PREFIX+q.getKind()));
+		else
+			return null;
+		if (counterKeys==null)
+			return null;
+		
+		String resultKey = QueryCacheKeys.toResultKey(description);
+		List<String> mcKeys = new ArrayList<>(counterKeys);
+		mcKeys.add(resultKey);
+		Map<String, Object> values = mc.getAll(mcKeys);
+		
+		Map<String, Long> stamps = new HashMap<>();
+		List<String> missingCounters = new ArrayList<>();
+		for(String counterKey:counterKeys)
+		{
+			Object value = values.get(counterKey);
+			if (value instanceof Long)
+				stamps.put(counterKey, (Long)value);
+			else
+				missingCounters.add(counterKey);
+		}
+		
+		QueryCacheLookup lookup = new QueryCacheLookup(resultKey, description, stamps, policy.getQueryCacheTtlMs());
+		if (missingCounters.isEmpty())
+		{
+			Object cached = values.get(resultKey);
+			if (cached instanceof CachedQueryResult && ((CachedQueryResult)cached).isValid(description, stamps))
+				lookup.cachedResult = ((CachedQueryResult)cached).result;
+		}
+		else
+		{
+			// Counters that were never set or were evicted start from the current time so they can never go back to a value a result was stamped with
+			Map<String, Long> initialized = mc.incrementAll(missingCounters, 0, System.currentTimeMillis());
+			for(String counterKey:missingCounters)
+			{
+				Long value = initialized.get(counterKey);
+				if (value==null)
+					return null;
+				stamps.put(counterKey, value);
+			}
+		}
+		
+		return lookup;
+	}
 	
-
+	private void storeQueryCacheResult(QueryCacheLookup lookup, Serializable result)
+	{
+		asyncMc.put(lookup.resultKey, new CachedQueryResult(lookup.description, result, lookup.stamps), toExpiration(lookup.ttlMs));
+	}
+	
+	/**
+	 * Adds the query cache counters that putting the given entity has to increment, based on the properties that 
+	 * were changed since it was loaded.
+	 * 
+	 * @param entity
+	 * @param counterKeys
+	 */
+	private void addQueryCacheInvalidations(CachedEntity entity, Set<String> counterKeys)
+	{
+		QueryCacheMode mode = getCachePolicy(entity.getKind()).getQueryCacheMode();
+		if (mode==QueryCacheMode.PROPERTY)
+			QueryCacheKeys.addChangeCounterKeys(entity, counterKeys);
+		else if (mode==QueryCacheMode.KIND_GENERATION)
+			counterKeys.add(KIND_GENERATION_PREFIX+entity.getKind());
+	}
+	
+	/**
+	 * Increments the given query cache counters, which invalidates every cached query result that depends on 
+	 * them. Inside of a transaction this waits for the commit.
+	 * 
+	 * @param counterKeys
+	 */
+	private void invalidateQueryCache(Set<String> counterKeys)
+	{
+		if (counterKeys.isEmpty())
+			return;
+		
+		if (isTransactionActive())
+		{
+			if (pendingQueryCacheInvalidations==null)
+				pendingQueryCacheInvalidations = new HashSet<>();
+			pendingQueryCacheInvalidations.addAll(counterKeys);
+			return;
+		}
+		
+		bumpKindGenerations(Collections.<String>emptySet(), counterKeys);
+	}
+	
+	/**
+	 * We only have the keys of deleted entities, so every cached query of their kinds is invalidated.
+	 * 
+	 * @param keys
+	 * @param counterKeys
+	 */
+	private void addQueryCacheInvalidationsForDeletes(Collection<Key> keys, Set<String> counterKeys)
+	{
+		for(Key key:keys)
+		{
+			QueryCacheMode mode = getCachePolicy(key.getKind()).getQueryCacheMode();
+			if (mode==QueryCacheMode.PROPERTY)
+				counterKeys.add(QueryCacheKeys.toKindCounterKey(key.getKind()));
+			else if (mode==QueryCacheMode.KIND_GENERATION)
+				counterKeys.add(KIND_GENERATION_PREFIX+key.getKind());
+		}
+	}
 	
 	
 	
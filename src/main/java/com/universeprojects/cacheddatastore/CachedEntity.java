@@ -1,11 +1,18 @@
 package com.universeprojects.cacheddatastore;
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
+import com.google.appengine.api.datastore.EmbeddedEntity;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
@@ -23,6 +30,14 @@ public class CachedEntity implements Cloneable,Serializable {
 	boolean unsavedChanges = false;
 	boolean deleted = false;
 	boolean newEntity = false;
+	// New entities with a preallocated ID can't be overwriting an existing entity, see QueryCacheKeys
+	boolean preallocatedId = false;
+	
+	// The properties that were changed since this entity was loaded or last saved, along with the value each one had before it was first changed
+	private Set<String> changedProperties = null;
+	private Map<String, Object> originalValues = null;
+	// The changed properties that were unindexed before they were first changed
+	private Set<String> originallyUnindexed = null;
 	
 	public CachedEntity(Key key)
 	{
@@ -43,6 +58,7 @@ public class CachedEntity implements Cloneable,Serializable {
 		this(new Entity(kind, ds.getPreallocatedIdFor(kind)));
 
 		newEntity = true;
+		preallocatedId = true;
 		unsavedChanges = true;
 	}
 	
@@ -121,6 +137,7 @@ public class CachedEntity implements Cloneable,Serializable {
 		try
 		{
 			entity = ds.db.get(getKey());
+			markSaved();
 			if (ds.cacheEnabled && ds.isTransactionActive())
 			{
 				ds.addEntityToTransaction(getKey());
@@ -167,32 +184,63 @@ public class CachedEntity implements Cloneable,Serializable {
 	 */
 	protected void updateStoredKey(Key originalKey, Key newKey)
 	{
-		for(String field:this.getProperties().keySet())
+		Map<Key, Key> replacements = new IdentityHashMap<>();
+		replacements.put(originalKey, newKey);
+		updateStoredKeys(replacements);
+	}
+	
+	/**
+	 * Replaces every key stored in this entity's fields (directly or in a list) that is one of the
+	 * given map's keys with the key it maps to. This is done in a single pass over the fields no matter
+	 * how many keys are being replaced.
+	 * 
+	 * Keys are matched by instance since incomplete keys of the same kind can't be told apart otherwise, 
+	 * so the map should be an IdentityHashMap.
+	 * 
+	 * @param replacements Old key to new key
+	 * @return How many references were replaced.
+	 */
+	int updateStoredKeys(Map<Key, Key> replacements)
+	{
+		int replacedCount = 0;
+		for(Map.Entry<String, Object> property:getProperties().entrySet())
 		{
-			Object value = this.getProperty(field);
+			Object value = property.getValue();
 			if (value instanceof Key)
 			{
-				if (originalKey == value)
+				Key newKey = replacements.get(value);
+				if (newKey!=null)
 				{
-					this.setProperty(field, newKey);
-				
-					log.warning(this.getKey()+"."+field+" was "+originalKey+" and is now "+newKey);
+					this.setProperty(property.getKey(), newKey);
+					replacedCount++;
 				}
 			}
 			else if (value instanceof List)
 			{
 				@SuppressWarnings("unchecked")
 				List<Object> list = (List<Object>)value;
+				boolean changed = false;
 				for(int i = 0; i<list.size(); i++)
-					if (originalKey == list.get(i))
+				{
+					Object element = list.get(i);
+					if (element instanceof Key==false) continue;
+					
+					Key newKey = replacements.get(element);
+					if (newKey!=null)
 					{
 						list.set(i, newKey);
-						
-						log.warning(this.getKey()+"."+field+"["+i+"] was "+originalKey+" and is now "+newKey);
+						changed = true;
+						replacedCount++;
 					}
+				}
+				
+				// The list was changed in place, so it has to be marked as changed by hand
+				if (changed)
+					markPropertyChanged(property.getKey());
 			}
 		}
 		
+		return replacedCount;
 	}
 	
 	public boolean equals(Object object)
@@ -278,6 +326,10 @@ public class CachedEntity implements Cloneable,Serializable {
 	
 	public void removeProperty(String propertyName)
 	{
+		if (entity.hasProperty(propertyName)==false)
+			return;
+		
+		markPropertyChanged(propertyName);
 		entity.removeProperty(propertyName);
 	}
 	
@@ -301,14 +353,110 @@ public class CachedEntity implements Cloneable,Serializable {
 
 		
 		
+		setPropertyIfChanged(propertyName, value, unindexed);
+	}
+	
+	/**
+	 * Sets the property, but only marks this entity as changed if the value (or whether it's indexed) is 
+	 * actually different from what's already there.
+	 */
+	private void setPropertyIfChanged(String propertyName, Object value, boolean unindexed)
+	{
+		if (entity.hasProperty(propertyName))
+		{
+			Object currentValue = entity.getProperty(propertyName);
+			// Collections and embedded entities can be changed in place, so if we're handed the same instance we have to assume it was
+			boolean mutable = currentValue instanceof Collection || currentValue instanceof Map || currentValue instanceof EmbeddedEntity;
+			boolean sameValue = currentValue==null ? value==null : currentValue.equals(value);
+			if (sameValue && (mutable==false || currentValue!=value) && entity.isUnindexedProperty(propertyName)==unindexed)
+				return;
+		}
+		
+		markPropertyChanged(propertyName);
+		
 		if (unindexed)
 			entity.setUnindexedProperty(propertyName, value);
 		else
 			entity.setProperty(propertyName, value);
+	}
+	
+	private void markPropertyChanged(String propertyName)
+	{
+		if (changedProperties==null)
+		{
+			changedProperties = new LinkedHashSet<>();
+			originalValues = new HashMap<>();
+			originallyUnindexed = new HashSet<>();
+		}
+		
+		// Only the first change keeps the original value
+		if (changedProperties.add(propertyName))
+		{
+			originalValues.put(propertyName, entity.getProperty(propertyName));
+			if (entity.hasProperty(propertyName) && entity.isUnindexedProperty(propertyName))
+				originallyUnindexed.add(propertyName);
+		}
 		
 		unsavedChanges = true;
 	}
 	
+	/**
+	 * @return The names of the properties that were set to a different value (or removed) since this entity was loaded or last saved.
+	 */
+	public Set<String> getChangedProperties()
+	{
+		if (changedProperties==null)
+			return Collections.emptySet();
+		return Collections.unmodifiableSet(changedProperties);
+	}
+	
+	public boolean isPropertyChanged(String propertyName)
+	{
+		return changedProperties!=null && changedProperties.contains(propertyName);
+	}
+	
+	/**
+	 * Returns the value the property had when this entity was loaded or last saved. If the property wasn't 
+	 * changed since then, this is the same as the current value.
+	 * 
+	 * Values that are changed in place (like adding to a list) are not copied, so this will already include those changes.
+	 * Like getProperty(), Text values are returned as a String.
+	 * 
+	 * @param propertyName
+	 * @return
+	 */
+	public Object getOriginalProperty(String propertyName)
+	{
+		Object value = isPropertyChanged(propertyName) ? originalValues.get(propertyName) : entity.getProperty(propertyName);
+		if (value instanceof Text)
+			return ((Text)value).getValue();
+		return value;
+	}
+	
+	/**
+	 * Like isUnindexedProperty(), but for the property as it was when this entity was loaded or last saved.
+	 * 
+	 * @param propertyName
+	 * @return
+	 */
+	public boolean wasUnindexedProperty(String propertyName)
+	{
+		if (isPropertyChanged(propertyName))
+			return originallyUnindexed.contains(propertyName);
+		return entity.isUnindexedProperty(propertyName);
+	}
+	
+	/**
+	 * Called once this entity was saved, its current values become the new original values.
+	 */
+	void markSaved()
+	{
+		unsavedChanges = false;
+		changedProperties = null;
+		originalValues = null;
+		originallyUnindexed = null;
+	}
+	
 	public static CachedEntity wrap(Entity obj)
 	{
 		if (obj==null) return null;
@@ -317,16 +465,12 @@ public class CachedEntity implements Cloneable,Serializable {
 
 	public void setPropertyManually(String propertyName, Object value)
 	{
-		entity.setProperty(propertyName, value);
-		
-		unsavedChanges = true;
+		setPropertyIfChanged(propertyName, value, false);
 	}
 	
 	public void setUnindexedPropertyManually(String propertyName, Object value)
 	{
-		entity.setUnindexedProperty(propertyName, value);
-		
-		unsavedChanges = true;
+		setPropertyIfChanged(propertyName, value, true);
 	}
 	
 	public boolean isUnsaved()
@@ -0,0 +1,30 @@
+package com.universeprojects.cacheddatastore;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * The keys a query returned (or its count), as stored in memcache by the query cache. The result is stamped with the
+ * invalidation counters it depends on, it is only valid while all of those counters still have the same values.
+ */
+class CachedQueryResult implements Serializable
+{
+	private static final long serialVersionUID = 4126381952731735023L;
+	
+	// The full query description, long cache keys are hashed so this is checked on every read
+	final String description;
+	final Serializable result;
+	final Map<String, Long> stamps;
+	
+	CachedQueryResult(String description, Serializable result, Map<String, Long> stamps)
+	{
+		this.description = description;
+		this.result = result;
+		this.stamps = stamps;
+	}
+	
+	boolean isValid(String description, Map<String, Long> currentStamps)
+	{
+		return this.description.equals(description) && stamps.equals(currentStamps);
+	}
+}
@@ -0,0 +1,19 @@
+package com.universeprojects.cacheddatastore;
+
+import java.util.List;
+
+/**
+ * A CachedSchema can also implement this interface to list the fields each kind has. When it does, 
+ * EntitySerializer writes those field names as small numbers instead of spelling them out in every value.
+ * 
+ * The order of the list matters. Values written with one list can only be read back with the same list, 
+ * which is checked when reading.
+ */
+public interface CachedSchemaFields
+{
+	/**
+	 * @param entityKind
+	 * @return The names of the kind's fields in a stable order, or null if the kind isn't known.
+	 */
+	List<String> getFieldNames(String entityKind);
+}
@@ -0,0 +1,16 @@
+package com.universeprojects.cacheddatastore;
+
+/**
+ * A CachedSchema can also implement this interface to declare how each kind is cached. Policies set 
+ * with CachedDatastoreService.setCachePolicy() (or the older per-kind setters) take precedence over these.
+ * 
+ * This is called for every entity that goes through the caches, so it should be a simple lookup.
+ */
+public interface CachedSchemaPolicies
+{
+	/**
+	 * @param entityKind
+	 * @return The kind's policy, or null to use CachePolicy.DEFAULT.
+	 */
+	CachePolicy getCachePolicy(String entityKind);
+}
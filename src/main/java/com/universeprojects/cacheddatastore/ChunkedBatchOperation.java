@@ -0,0 +1,200 @@
+package com.universeprojects.cacheddatastore;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Runs one batch operation as several smaller chunks, keeping up to maxConcurrentChunks of them
+ * in flight at a time. Subclasses start each chunk as an async RPC.
+ *
+ * @param <T> The type of item in each chunk (Key, Entity...)
+ * @param <R> The result type of each chunk's RPC
+ */
+abstract class ChunkedBatchOperation<T, R>
+{
+	/**
+	 * The result of one chunk run by executeIsolated().
+	 */
+	static class ChunkOutcome<T, R>
+	{
+		final List<T> chunk;
+		final R result;
+		final Throwable error;
+		final long durationMs;
+
+		ChunkOutcome(List<T> chunk, R result, Throwable error, long durationMs)
+		{
+			this.chunk = chunk;
+			this.result = result;
+			this.error = error;
+			this.durationMs = durationMs;
+		}
+	}
+
+	private final int maxConcurrentChunks;
+
+	ChunkedBatchOperation(int maxConcurrentChunks)
+	{
+		if (maxConcurrentChunks<1) throw new IllegalArgumentException("maxConcurrentChunks must be greater than 0.");
+		this.maxConcurrentChunks = maxConcurrentChunks;
+	}
+
+	/**
+	 * Starts the async RPC for one chunk.
+	 *
+	 * @param chunk
+	 * @return
+	 */
+	protected abstract Future<R> startChunk(List<T> chunk);
+
+	/**
+	 * Runs all the chunks and waits for them to finish.
+	 *
+	 * @param chunks
+	 * @return The chunk results in the same order as the chunks.
+	 */
+	List<R> execute(List<List<T>> chunks)
+	{
+		List<R> results = new ArrayList<R>(chunks.size());
+		LinkedList<Future<R>> inFlight = new LinkedList<Future<R>>();
+
+		for(List<T> chunk:chunks)
+		{
+			if (inFlight.size()>=maxConcurrentChunks)
+				results.add(await(inFlight.removeFirst()));
+
+			inFlight.add(startChunk(chunk));
+		}
+
+		while(inFlight.isEmpty()==false)
+			results.add(await(inFlight.removeFirst()));
+
+		return results;
+	}
+
+	/**
+	 * Like execute(), but a chunk that fails doesn't stop the others. Every chunk's outcome is
+	 * returned instead, along with how long it took.
+	 *
+	 * @param chunks
+	 * @return The chunk outcomes in the same order as the chunks.
+	 */
+	List<ChunkOutcome<T, R>> executeIsolated(List<List<T>> chunks)
+	{
+		List<ChunkOutcome<T, R>> outcomes = new ArrayList<ChunkOutcome<T, R>>(chunks.size());
+		LinkedList<Future<R>> inFlight = new LinkedList<Future<R>>();
+		LinkedList<Long> startTimes = new LinkedList<Long>();
+		int nextOutcome = 0;
+
+		for(List<T> chunk:chunks)
+		{
+			if (inFlight.size()>=maxConcurrentChunks)
+				outcomes.add(awaitOutcome(chunks.get(nextOutcome++), inFlight.removeFirst(), startTimes.removeFirst()));
+
+			startTimes.add(System.currentTimeMillis());
+			try
+			{
+				inFlight.add(startChunk(chunk));
+			}
+			catch(RuntimeException e)
+			{
+				// Keep the outcomes in order by treating this as a chunk that failed right away
+				inFlight.add(new FailedFuture<R>(e));
+			}
+		}
+
+		while(inFlight.isEmpty()==false)
+			outcomes.add(awaitOutcome(chunks.get(nextOutcome++), inFlight.removeFirst(), startTimes.removeFirst()));
+
+		return outcomes;
+	}
+
+	private ChunkOutcome<T, R> awaitOutcome(List<T> chunk, Future<R> future, long startTime)
+	{
+		try
+		{
+			R result = future.get();
+			return new ChunkOutcome<T, R>(chunk, result, null, System.currentTimeMillis()-startTime);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return new ChunkOutcome<T, R>(chunk, null, e, System.currentTimeMillis()-startTime);
+		}
+		catch (ExecutionException e)
+		{
+			return new ChunkOutcome<T, R>(chunk, null, e.getCause(), System.currentTimeMillis()-startTime);
+		}
+	}
+
+	private static class FailedFuture<R> extends DeferredFuture<R>
+	{
+		private final RuntimeException error;
+
+		FailedFuture(RuntimeException error)
+		{
+			this.error = error;
+		}
+
+		@Override
+		protected R resolve()
+		{
+			throw error;
+		}
+	}
+
+	static <R> R await(Future<R> future)
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a batch operation.", e);
+		}
+		catch (ExecutionException e)
+		{
+			// We want callers to see the same exceptions the synchronous services would have thrown
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Splits the given items into chunks that don't go over the given count or estimated byte size.
+	 * An item that is bigger than maxBytes on its own still gets a chunk of its own.
+	 *
+	 * @param items
+	 * @param maxCount
+	 * @param maxBytes The maximum estimated size of a chunk, or 0 to only split by count.
+	 * @return
+	 */
+	static <T> List<List<T>> split(List<T> items, int maxCount, long maxBytes)
+	{
+		List<List<T>> chunks = new ArrayList<List<T>>();
+		List<T> chunk = new ArrayList<T>();
+		long chunkBytes = 0;
+		for(T item:items)
+		{
+			long itemBytes = maxBytes>0 ? DBUtils.estimateSize(item) : 0;
+			if (chunk.isEmpty()==false && (chunk.size()>=maxCount || (maxBytes>0 && chunkBytes+itemBytes>maxBytes)))
+			{
+				chunks.add(chunk);
+				chunk = new ArrayList<T>();
+				chunkBytes = 0;
+			}
+			chunk.add(item);
+			chunkBytes += itemBytes;
+		}
+		if (chunk.isEmpty()==false)
+			chunks.add(chunk);
+
+		return chunks;
+	}
+}
@@ -5,17 +5,41 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.Collection;
+import java.util.Map;
 
 import org.apache.commons.codec.binary.Base64;
 
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.ShortBlob;
 import com.google.appengine.api.datastore.Text;
 
 public final class DBUtils
 {
     static final Base64 base64 = new Base64();
+    private static final String ENTITY_STRING_PREFIX = "~";
 
+    /**
+     * Entities are written with EntitySerializer and marked with a ~ prefix (which can't appear in base64), 
+     * everything else uses java serialization. The schema's field dictionary isn't used here since these 
+     * strings can outlive the current field list.
+     */
     public static String serializeObjectToString(Object object){
     	if (object==null) return null;
+    	if (object instanceof Entity)
+    	{
+    		try
+			{
+				return ENTITY_STRING_PREFIX+new String(base64.encode(EntitySerializer.serialize((Entity)object, false)));
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+    	}
         try (
             ByteArrayOutputStream arrayOutputStream = new ByteArrayOutputStream();
             ObjectOutputStream objectOutputStream = new ObjectOutputStream(arrayOutputStream);) 
@@ -33,6 +57,8 @@ public final class DBUtils
     public static Object deserializeObjectFromString(String objectString) throws Exception
     {
     	if (objectString==null) return null;
+    	if (objectString.startsWith(ENTITY_STRING_PREFIX))
+    		return EntitySerializer.deserialize(base64.decode(objectString.substring(ENTITY_STRING_PREFIX.length())));
         try (
             ByteArrayInputStream arrayInputStream = new ByteArrayInputStream(base64.decode(objectString));
             ObjectInputStream objectInputStream = new ObjectInputStream(arrayInputStream)) 
@@ -64,4 +90,131 @@ public final class DBUtils
     	else
     		throw new RuntimeException("Invalid type "+value.getClass().getSimpleName()+". Expected Text or String.");
     }
+    
+    /**
+     * Gives a rough estimate of how much memory the given value uses. This is only meant
+     * to be used for things like cache size limits so it's fast rather than exact.
+     * 
+     * @param value
+     * @return Estimated size in bytes
+     */
+    public static long estimateSize(Object value)
+    {
+    	if (value==null)
+    		return 0;
+    	else if (value instanceof String)
+    		return 40+2L*((String)value).length();
+    	else if (value instanceof Text)
+    		return 56+2L*((Text)value).getValue().length();
+    	else if (value instanceof Key)
+    	{
+    		Key key = (Key)value;
+    		long size = 64+estimateSize(key.getKind())+estimateSize(key.getName());
+    		if (key.getParent()!=null)
+    			size += estimateSize(key.getParent());
+    		return size;
+    	}
+    	else if (value instanceof Entity)
+    	{
+    		Entity entity = (Entity)value;
+    		return 96+estimateSize(entity.getKey())+estimateSize(entity.getProperties());
+    	}
+    	else if (value instanceof EmbeddedEntity)
+    	{
+    		EmbeddedEntity entity = (EmbeddedEntity)value;
+    		return 64+estimateSize(entity.getKey())+estimateSize(entity.getProperties());
+    	}
+    	else if (value instanceof CachedEntity)
+    		return 32+estimateSize(((CachedEntity)value).getEntity());
+    	else if (value instanceof Map)
+    	{
+    		long size = 48;
+    		for(Map.Entry<?,?> entry:((Map<?,?>)value).entrySet())
+    			size += 32+estimateSize(entry.getKey())+estimateSize(entry.getValue());
+    		return size;
+    	}
+    	else if (value instanceof Collection)
+    	{
+    		long size = 40;
+    		for(Object element:(Collection<?>)value)
+    			size += 8+estimateSize(element);
+    		return size;
+    	}
+    	else if (value instanceof byte[])
+    		return 16+((byte[])value).length;
+    	else if (value instanceof Blob)
+    		return 32+((Blob)value).getBytes().length;
+    	else if (value instanceof ShortBlob)
+    		return 32+((ShortBlob)value).getBytes().length;
+    	else if (value instanceof EncodedEntityValue)
+    		return 40+(((EncodedEntityValue)value).data==null ? 0 : ((EncodedEntityValue)value).data.length);
+    	else
+    		return 24;
+    }
+    
+    /**
+     * Encodes a key into a short string that is stable across instances and deploys. The string 
+     * contains the namespace (if any) and the full ancestor path with ids written in base 36. 
+     * Unlike KeyFactory.keyToString() the app id is left out and nothing is protobuf encoded, so the
+     * result is much shorter and cheaper to build.
+     * 
+     * Two different keys will never produce the same string.
+     * 
+     * @param key
+     * @return
+     */
+    public static String toCompactKeyString(Key key)
+    {
+    	StringBuilder sb = new StringBuilder(48);
+    	String namespace = key.getNamespace();
+    	if (namespace!=null && namespace.isEmpty()==false)
+    	{
+    		sb.append('@');
+    		appendCompactKeyPart(sb, namespace);
+    		sb.append('|');
+    	}
+    	appendCompactKeyPath(sb, key);
+    	return sb.toString();
+    }
+    
+    private static void appendCompactKeyPath(StringBuilder sb, Key key)
+    {
+    	if (key.getParent()!=null)
+    	{
+    		appendCompactKeyPath(sb, key.getParent());
+    		sb.append('/');
+    	}
+    	
+    	appendCompactKeyPart(sb, key.getKind());
+    	if (key.getName()!=null)
+    	{
+    		sb.append('\'');
+    		appendCompactKeyPart(sb, key.getName());
+    	}
+    	else
+    	{
+    		sb.append(':');
+    		sb.append(Long.toString(key.getId(), 36));
+    	}
+    }
+    
+    /**
+     * Appends the given kind, name or namespace, escaping the characters that are used as separators
+     * so the encoding stays unambiguous.
+     */
+    private static void appendCompactKeyPart(StringBuilder sb, String part)
+    {
+    	for(int i = 0; i<part.length(); i++)
+    	{
+    		char c = part.charAt(i);
+    		if (c=='%' || c=='/' || c==':' || c=='\'' || c=='@' || c=='|')
+    		{
+    			sb.append('%');
+    			if (c<0x10) sb.append('0');
+    			sb.append(Integer.toHexString(c));
+    		}
+    		else
+    			sb.append(c);
+    	}
+    }
 }
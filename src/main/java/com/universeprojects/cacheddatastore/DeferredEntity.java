@@ -0,0 +1,57 @@
+package com.universeprojects.cacheddatastore;
+
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * A handle to an entity that hasn't been fetched yet. These are returned by
+ * CachedDatastoreService.getLater().
+ *
+ * The first time any handle is dereferenced with get(), every handle that is still pending
+ * on the same CachedDatastoreService is loaded together in a single batch fetch. This lets loops
+ * that used to call get() one key at a time do a single round trip instead.
+ *
+ * @author Owner
+ *
+ */
+public class DeferredEntity
+{
+	final private CachedDatastoreService ds;
+	final private Key key;
+	private CachedEntity entity = null;
+	private boolean loaded = false;
+
+	DeferredEntity(CachedDatastoreService ds, Key key)
+	{
+		this.ds = ds;
+		this.key = key;
+	}
+
+	public Key getKey()
+	{
+		return key;
+	}
+
+	/**
+	 * Returns the entity, loading it (along with all other pending handles) if it hasn't been loaded yet.
+	 *
+	 * @return The entity or null if it doesn't exist.
+	 */
+	public CachedEntity get()
+	{
+		if (loaded==false)
+			ds.loadDeferredEntities();
+
+		return entity;
+	}
+
+	public boolean isLoaded()
+	{
+		return loaded;
+	}
+
+	void setEntity(CachedEntity entity)
+	{
+		this.entity = entity;
+		this.loaded = true;
+	}
+}
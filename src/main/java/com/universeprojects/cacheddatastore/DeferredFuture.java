@@ -0,0 +1,106 @@
+package com.universeprojects.cacheddatastore;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A future whose value is worked out on the calling thread the first time get() is called.
+ *
+ * This is what the CachedDatastoreService's async methods return. The RPCs that can be started
+ * right away are already running by the time the future is returned, resolve() then waits for them
+ * and does whatever else is needed to produce the final value.
+ *
+ * @param <T>
+ */
+public abstract class DeferredFuture<T> implements Future<T>
+{
+	private boolean resolved = false;
+	private T value;
+	private Throwable error;
+
+	/**
+	 * Produces the value of this future. This is only ever called once.
+	 *
+	 * @return
+	 * @throws Exception
+	 */
+	protected abstract T resolve() throws Exception;
+
+	@Override
+	public synchronized T get() throws InterruptedException, ExecutionException
+	{
+		if (resolved==false)
+		{
+			try
+			{
+				value = resolve();
+			}
+			catch(InterruptedException e)
+			{
+				throw e;
+			}
+			catch(ExecutionException e)
+			{
+				error = e.getCause();
+			}
+			catch(Exception e)
+			{
+				error = e;
+			}
+			resolved = true;
+		}
+
+		if (error!=null)
+			throw new ExecutionException(error);
+
+		return value;
+	}
+
+	/**
+	 * Since the value is worked out on the calling thread, the timeout is not enforced. This
+	 * behaves the same as get().
+	 */
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+	{
+		return get();
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning)
+	{
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled()
+	{
+		return false;
+	}
+
+	@Override
+	public synchronized boolean isDone()
+	{
+		return resolved;
+	}
+
+	/**
+	 * Creates a future that is already resolved to the given value.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static <T> DeferredFuture<T> of(final T value)
+	{
+		return new DeferredFuture<T>()
+		{
+			@Override
+			protected T resolve()
+			{
+				return value;
+			}
+		};
+	}
+}
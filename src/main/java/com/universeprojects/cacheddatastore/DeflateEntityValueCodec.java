@@ -0,0 +1,136 @@
+package com.universeprojects.cacheddatastore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * The default EntityValueCodec. Entities are serialized with EntitySerializer and, if the result is at least as big as 
+ * the compression threshold, compressed with deflate at its fastest setting. Compression is skipped 
+ * when it doesn't actually make the value smaller.
+ * 
+ * The first byte of every encoded value says how the rest of it is stored. Values that were written 
+ * with java serialization by older versions can still be decoded.
+ *
+ * @author Owner
+ *
+ */
+public class DeflateEntityValueCodec implements EntityValueCodec
+{
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 8*1024;
+	
+	private static final byte FORMAT_SERIALIZED = 0;
+	private static final byte FORMAT_SERIALIZED_DEFLATE = 1;
+	
+	private final int compressionThreshold;
+	
+	public DeflateEntityValueCodec()
+	{
+		this(DEFAULT_COMPRESSION_THRESHOLD);
+	}
+	
+	/**
+	 * @param compressionThreshold Serialized entities smaller than this many bytes are not compressed.
+	 */
+	public DeflateEntityValueCodec(int compressionThreshold)
+	{
+		if (compressionThreshold<0) throw new IllegalArgumentException("compressionThreshold cannot be negative.");
+		this.compressionThreshold = compressionThreshold;
+	}
+	
+	@Override
+	public byte[] encode(Entity entity) throws IOException
+	{
+		byte[] serialized = serialize(entity);
+		
+		if (serialized.length>=compressionThreshold)
+		{
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(serialized.length/2+1);
+			compressed.write(FORMAT_SERIALIZED_DEFLATE);
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater))
+			{
+				out.write(serialized);
+			}
+			finally
+			{
+				deflater.end();
+			}
+			
+			if (compressed.size()<serialized.length+1)
+				return compressed.toByteArray();
+		}
+		
+		byte[] result = new byte[serialized.length+1];
+		result[0] = FORMAT_SERIALIZED;
+		System.arraycopy(serialized, 0, result, 1, serialized.length);
+		return result;
+	}
+	
+	@Override
+	public Entity decode(byte[] data) throws IOException
+	{
+		if (data==null || data.length==0)
+			throw new IOException("Empty entity value.");
+		
+		InputStream in = new ByteArrayInputStream(data, 1, data.length-1);
+		if (data[0]==FORMAT_SERIALIZED)
+			return deserialize(in);
+		if (data[0]!=FORMAT_SERIALIZED_DEFLATE)
+			throw new IOException("Unknown entity value format "+data[0]+".");
+		
+		// The inflater holds native memory, so it's released right away instead of waiting for the finalizer
+		Inflater inflater = new Inflater();
+		try (InflaterInputStream inflated = new InflaterInputStream(in, inflater))
+		{
+			return deserialize(inflated);
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+	
+	/**
+	 * Turns the entity into bytes before compression. 
+	 * 
+	 * @param entity
+	 * @return
+	 * @throws IOException
+	 */
+	protected byte[] serialize(Entity entity) throws IOException
+	{
+		return EntitySerializer.serialize(entity);
+	}
+	
+	protected Entity deserialize(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		byte[] buffer = new byte[4096];
+		int read;
+		while((read = in.read(buffer))>=0)
+			bytes.write(buffer, 0, read);
+		byte[] data = bytes.toByteArray();
+		
+		if (EntitySerializer.isSerializedEntity(data))
+			return EntitySerializer.deserialize(data);
+		
+		// Written with java serialization
+		try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(data)))
+		{
+			return (Entity)objectIn.readObject();
+		}
+		catch (ClassNotFoundException | ClassCastException e)
+		{
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package com.universeprojects.cacheddatastore;
+
+import java.io.Serializable;
+
+/**
+ * This is what is stored in an entity's memcache slot when an EntityValueCodec is in use. 
+ * 
+ * Encoded entities that are too big for a single memcache value are split into chunks. In that case 
+ * the entity's slot holds a value with no data that only says how many chunks there are, and each 
+ * chunk is stored in a slot of its own, see CachedDatastoreService.
+ */
+public class EncodedEntityValue implements Serializable
+{
+	private static final long serialVersionUID = -6420917781623405529L;
+
+	// Identifies one set of chunks so chunks of different writes of the same entity never get mixed
+	final long chunkSetId;
+	final int chunkCount;
+	final byte[] data;
+
+	EncodedEntityValue(byte[] data)
+	{
+		this(0, 0, data);
+	}
+
+	EncodedEntityValue(long chunkSetId, int chunkCount, byte[] data)
+	{
+		this.chunkSetId = chunkSetId;
+		this.chunkCount = chunkCount;
+		this.data = data;
+	}
+
+	boolean isChunked()
+	{
+		return chunkCount>0;
+	}
+}
@@ -0,0 +1,571 @@
+package com.universeprojects.cacheddatastore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyContainer;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * A compact binary format for entities. This is a lot smaller and faster than java serialization since 
+ * there are no class descriptors, numbers are written as varints and keys are written as their path.
+ * 
+ * If the schema implements CachedSchemaFields, property names that are part of the kind's schema are 
+ * written as their position in the field list instead of the whole name.
+ * 
+ * The dictionary is only meant for short lived copies (like memcache). A value written with it can't be read 
+ * once the kind's field list changes, so anything stored for good should be written without it.
+ * 
+ * Every value starts with a header (magic bytes, format version and flags) so the format can be changed 
+ * later without breaking values that are already stored. Values of a type this format doesn't know about 
+ * are written with java serialization.
+ *
+ * @author Owner
+ *
+ */
+public final class EntitySerializer
+{
+	private static final byte MAGIC_1 = (byte)0xCE;
+	private static final byte MAGIC_2 = (byte)0x5E;
+	// Version 1 identified the field list with List.hashCode(), version 2 uses a digest of the names
+	private static final byte VERSION_1 = 1;
+	private static final byte VERSION = 2;
+	
+	private static final int FLAG_DICTIONARY = 1;
+	
+	// Value type tags. The high bit of a property's tag means the property is unindexed.
+	private static final int TAG_NULL = 0;
+	private static final int TAG_LONG = 1;
+	private static final int TAG_DOUBLE = 2;
+	private static final int TAG_TRUE = 3;
+	private static final int TAG_FALSE = 4;
+	private static final int TAG_STRING = 5;
+	private static final int TAG_TEXT = 6;
+	private static final int TAG_KEY = 7;
+	private static final int TAG_DATE = 8;
+	private static final int TAG_EMBEDDED_ENTITY = 9;
+	private static final int TAG_LIST = 10;
+	private static final int TAG_SHORT_BLOB = 11;
+	private static final int TAG_BLOB = 12;
+	private static final int TAG_SERIALIZED = 13;
+	private static final int UNINDEXED_BIT = 0x80;
+	
+	// How a key is written
+	private static final int KEY_NULL = 0;
+	private static final int KEY_PATH = 1;
+	private static final int KEY_STRING = 2;
+	private static final int KEY_SERIALIZED = 3;
+	
+	private static class KindDictionary
+	{
+		final CachedSchema schema;
+		final List<String> names;
+		final Map<String, Integer> indexes = new HashMap<>();
+		final int legacyHash;
+		final long fingerprint;
+		
+		KindDictionary(CachedSchema schema, List<String> names)
+		{
+			this.schema = schema;
+			this.names = new ArrayList<>(names);
+			for(int i = 0; i<this.names.size(); i++)
+				indexes.put(this.names.get(i), i);
+			this.legacyHash = this.names.hashCode();
+			this.fingerprint = fingerprint(this.names);
+		}
+		
+		boolean matches(byte version, long fingerprint)
+		{
+			if (version==VERSION_1)
+				return legacyHash==(int)fingerprint;
+			return this.fingerprint==fingerprint;
+		}
+	}
+	
+	private static ConcurrentHashMap<String, KindDictionary> dictionaries = new ConcurrentHashMap<>();
+	
+	private EntitySerializer()
+	{
+	}
+	
+	/**
+	 * @param data
+	 * @return True if the given bytes start with this format's header.
+	 */
+	public static boolean isSerializedEntity(byte[] data)
+	{
+		return data!=null && data.length>=4 && data[0]==MAGIC_1 && data[1]==MAGIC_2;
+	}
+	
+	public static byte[] serialize(Entity entity) throws IOException
+	{
+		return serialize(entity, true);
+	}
+	
+	/**
+	 * @param entity
+	 * @param useDictionary False to always write property names in full. Use this for values that are 
+	 * kept longer than the current field list might be.
+	 */
+	public static byte[] serialize(Entity entity, boolean useDictionary) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		
+		KindDictionary dictionary = useDictionary ? getDictionary(entity.getKind()) : null;
+		
+		out.writeByte(MAGIC_1);
+		out.writeByte(MAGIC_2);
+		out.writeByte(VERSION);
+		out.writeByte(dictionary!=null ? FLAG_DICTIONARY : 0);
+		if (dictionary!=null)
+			out.writeLong(dictionary.fingerprint);
+		
+		writeKey(out, entity.getKey());
+		writeProperties(out, entity, dictionary);
+		
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	public static Entity deserialize(byte[] data) throws IOException
+	{
+		if (isSerializedEntity(data)==false)
+			throw new IOException("Not a serialized entity.");
+		byte version = data[2];
+		if (version!=VERSION && version!=VERSION_1)
+			throw new IOException("Unsupported entity format version "+data[2]+".");
+		
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 4, data.length-4));
+		
+		// Keys are rebuilt with KeyFactory which uses the current namespace, but path encoded keys are always in the default namespace
+		String namespace = NamespaceManager.get();
+		if (namespace!=null)
+			NamespaceManager.set(null);
+		try
+		{
+			Long dictionaryFingerprint = null;
+			if ((data[3] & FLAG_DICTIONARY)!=0)
+				dictionaryFingerprint = version==VERSION_1 ? (long)in.readInt() : in.readLong();
+			
+			Key key = readKey(in);
+			Entity entity = new Entity(key);
+			
+			KindDictionary dictionary = null;
+			if (dictionaryFingerprint!=null)
+			{
+				dictionary = getDictionary(key.getKind());
+				if (dictionary==null || dictionary.matches(version, dictionaryFingerprint)==false)
+					throw new IOException("The entity was written with a different field list for "+key.getKind()+".");
+			}
+			
+			readProperties(in, entity, dictionary);
+			return entity;
+		}
+		finally
+		{
+			if (namespace!=null)
+				NamespaceManager.set(namespace);
+		}
+	}
+	
+	private static KindDictionary getDictionary(String kind)
+	{
+		CachedSchema schema = SchemaInitializer.getSchema();
+		if ((schema instanceof CachedSchemaFields)==false)
+			return null;
+		
+		KindDictionary dictionary = dictionaries.get(kind);
+		if (dictionary==null || dictionary.schema!=schema)
+		{
+			List<String> names = ((CachedSchemaFields)schema).getFieldNames(kind);
+			if (names==null)
+				return null;
+			dictionary = new KindDictionary(schema, names);
+			dictionaries.put(kind, dictionary);
+		}
+		return dictionary;
+	}
+	
+	/**
+	 * @return The first 8 bytes of the SHA-1 of the names, so a reordered or renamed field list 
+	 * is (for all practical purposes) never mistaken for the one a value was written with.
+	 */
+	private static long fingerprint(List<String> names)
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			for(String name:names)
+			{
+				digest.update(name.getBytes(StandardCharsets.UTF_8));
+				digest.update((byte)0);
+			}
+			byte[] hash = digest.digest();
+			long result = 0;
+			for(int i = 0; i<8; i++)
+				result = (result << 8) | (hash[i] & 0xFF);
+			return result;
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static void writeProperties(DataOutputStream out, PropertyContainer container, KindDictionary dictionary) throws IOException
+	{
+		Map<String, Object> properties = container.getProperties();
+		writeVarint(out, properties.size());
+		for(Map.Entry<String, Object> property:properties.entrySet())
+		{
+			// 0 means the name follows, anything else is the name's position in the dictionary plus 1
+			Integer index = dictionary!=null ? dictionary.indexes.get(property.getKey()) : null;
+			if (index!=null)
+			{
+				writeVarint(out, index+1);
+			}
+			else
+			{
+				writeVarint(out, 0);
+				writeString(out, property.getKey());
+			}
+			
+			writeValue(out, property.getValue(), container.isUnindexedProperty(property.getKey()));
+		}
+	}
+	
+	private static void readProperties(DataInputStream in, PropertyContainer container, KindDictionary dictionary) throws IOException
+	{
+		int count = readVarint(in);
+		for(int i = 0; i<count; i++)
+		{
+			int index = readVarint(in);
+			String name;
+			if (index==0)
+				name = readString(in);
+			else if (dictionary!=null && index<=dictionary.names.size())
+				name = dictionary.names.get(index-1);
+			else
+				throw new IOException("Invalid field index "+index+".");
+			
+			int tag = in.readUnsignedByte();
+			Object value = readValue(in, tag & ~UNINDEXED_BIT);
+			if ((tag & UNINDEXED_BIT)!=0)
+				container.setUnindexedProperty(name, value);
+			else
+				container.setProperty(name, value);
+		}
+	}
+	
+	private static void writeValue(DataOutputStream out, Object value, boolean unindexed) throws IOException
+	{
+		int flag = unindexed ? UNINDEXED_BIT : 0;
+		if (value==null)
+		{
+			out.writeByte(TAG_NULL | flag);
+		}
+		else if (value instanceof Long)
+		{
+			out.writeByte(TAG_LONG | flag);
+			writeVarlong(out, zigzag((Long)value));
+		}
+		else if (value instanceof Double)
+		{
+			out.writeByte(TAG_DOUBLE | flag);
+			out.writeDouble((Double)value);
+		}
+		else if (value instanceof Boolean)
+		{
+			out.writeByte(((Boolean)value ? TAG_TRUE : TAG_FALSE) | flag);
+		}
+		else if (value instanceof String)
+		{
+			out.writeByte(TAG_STRING | flag);
+			writeString(out, (String)value);
+		}
+		else if (value instanceof Text)
+		{
+			out.writeByte(TAG_TEXT | flag);
+			writeString(out, ((Text)value).getValue());
+		}
+		else if (value instanceof Key)
+		{
+			out.writeByte(TAG_KEY | flag);
+			writeKey(out, (Key)value);
+		}
+		else if (value instanceof Date)
+		{
+			out.writeByte(TAG_DATE | flag);
+			writeVarlong(out, zigzag(((Date)value).getTime()));
+		}
+		else if (value instanceof EmbeddedEntity)
+		{
+			out.writeByte(TAG_EMBEDDED_ENTITY | flag);
+			EmbeddedEntity embeddedEntity = (EmbeddedEntity)value;
+			writeKey(out, embeddedEntity.getKey());
+			writeProperties(out, embeddedEntity, null);
+		}
+		else if (value instanceof Collection)
+		{
+			out.writeByte(TAG_LIST | flag);
+			Collection<?> list = (Collection<?>)value;
+			writeVarint(out, list.size());
+			for(Object element:list)
+				writeValue(out, element, false);
+		}
+		else if (value instanceof ShortBlob)
+		{
+			out.writeByte(TAG_SHORT_BLOB | flag);
+			writeBytes(out, ((ShortBlob)value).getBytes());
+		}
+		else if (value instanceof Blob)
+		{
+			out.writeByte(TAG_BLOB | flag);
+			writeBytes(out, ((Blob)value).getBytes());
+		}
+		else
+		{
+			// Everything else (ints, GeoPt, User, Email...) is rare enough that java serialization is fine
+			out.writeByte(TAG_SERIALIZED | flag);
+			writeBytes(out, javaSerialize(value));
+		}
+	}
+	
+	private static Object readValue(DataInputStream in, int tag) throws IOException
+	{
+		switch(tag)
+		{
+		case TAG_NULL:
+			return null;
+		case TAG_LONG:
+			return unzigzag(readVarlong(in));
+		case TAG_DOUBLE:
+			return in.readDouble();
+		case TAG_TRUE:
+			return Boolean.TRUE;
+		case TAG_FALSE:
+			return Boolean.FALSE;
+		case TAG_STRING:
+			return readString(in);
+		case TAG_TEXT:
+			return new Text(readString(in));
+		case TAG_KEY:
+			return readKey(in);
+		case TAG_DATE:
+			return new Date(unzigzag(readVarlong(in)));
+		case TAG_EMBEDDED_ENTITY:
+			EmbeddedEntity embeddedEntity = new EmbeddedEntity();
+			embeddedEntity.setKey(readKey(in));
+			readProperties(in, embeddedEntity, null);
+			return embeddedEntity;
+		case TAG_LIST:
+			int size = readVarint(in);
+			List<Object> list = new ArrayList<>(size);
+			for(int i = 0; i<size; i++)
+				list.add(readValue(in, in.readUnsignedByte() & ~UNINDEXED_BIT));
+			return list;
+		case TAG_SHORT_BLOB:
+			return new ShortBlob(readBytes(in));
+		case TAG_BLOB:
+			return new Blob(readBytes(in));
+		case TAG_SERIALIZED:
+			return javaDeserialize(readBytes(in));
+		default:
+			throw new IOException("Unknown value tag "+tag+".");
+		}
+	}
+	
+	private static void writeKey(DataOutputStream out, Key key) throws IOException
+	{
+		if (key==null)
+		{
+			out.writeByte(KEY_NULL);
+		}
+		else if (key.isComplete()==false)
+		{
+			// Only embedded entities can have these, there's no way to rebuild one from its path
+			out.writeByte(KEY_SERIALIZED);
+			writeBytes(out, javaSerialize(key));
+		}
+		else if (key.getNamespace()!=null && key.getNamespace().isEmpty()==false)
+		{
+			out.writeByte(KEY_STRING);
+			writeString(out, KeyFactory.keyToString(key));
+		}
+		else
+		{
+			out.writeByte(KEY_PATH);
+			writeKeyPath(out, key, 1);
+		}
+	}
+	
+	/**
+	 * Writes the number of path elements followed by each element from the root down.
+	 */
+	private static void writeKeyPath(DataOutputStream out, Key key, int depth) throws IOException
+	{
+		if (key.getParent()!=null)
+			writeKeyPath(out, key.getParent(), depth+1);
+		else
+			writeVarint(out, depth);
+		
+		writeString(out, key.getKind());
+		if (key.getName()!=null)
+		{
+			out.writeByte(1);
+			writeString(out, key.getName());
+		}
+		else
+		{
+			out.writeByte(0);
+			writeVarlong(out, key.getId());
+		}
+	}
+	
+	private static Key readKey(DataInputStream in) throws IOException
+	{
+		int type = in.readUnsignedByte();
+		switch(type)
+		{
+		case KEY_NULL:
+			return null;
+		case KEY_STRING:
+			return KeyFactory.stringToKey(readString(in));
+		case KEY_SERIALIZED:
+			return (Key)javaDeserialize(readBytes(in));
+		case KEY_PATH:
+			int depth = readVarint(in);
+			Key key = null;
+			for(int i = 0; i<depth; i++)
+			{
+				String kind = readString(in);
+				if (in.readUnsignedByte()==1)
+					key = KeyFactory.createKey(key, kind, readString(in));
+				else
+					key = KeyFactory.createKey(key, kind, readVarlong(in));
+			}
+			return key;
+		default:
+			throw new IOException("Unknown key type "+type+".");
+		}
+	}
+	
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private static String readString(DataInputStream in) throws IOException
+	{
+		return new String(readBytes(in), StandardCharsets.UTF_8);
+	}
+	
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException
+	{
+		writeVarint(out, bytes.length);
+		out.write(bytes);
+	}
+	
+	private static byte[] readBytes(DataInputStream in) throws IOException
+	{
+		int length = readVarint(in);
+		if (length<0) throw new IOException("Invalid length "+length+".");
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+	
+	private static void writeVarint(DataOutputStream out, int value) throws IOException
+	{
+		writeVarlong(out, value & 0xFFFFFFFFL);
+	}
+	
+	private static int readVarint(DataInputStream in) throws IOException
+	{
+		return (int)readVarlong(in);
+	}
+	
+	private static void writeVarlong(DataOutputStream out, long value) throws IOException
+	{
+		while((value & ~0x7FL)!=0)
+		{
+			out.writeByte((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+	
+	private static long readVarlong(DataInputStream in) throws IOException
+	{
+		long result = 0;
+		for(int shift = 0; shift<64; shift += 7)
+		{
+			int b = in.read();
+			if (b<0) throw new EOFException();
+			result |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80)==0)
+				return result;
+		}
+		throw new IOException("Malformed varint.");
+	}
+	
+	private static long zigzag(long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+	
+	private static long unzigzag(long value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	private static byte[] javaSerialize(Object value) throws IOException
+	{
+		if ((value instanceof Serializable)==false)
+			throw new IOException("Unable to serialize a "+value.getClass().getName()+".");
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+		{
+			out.writeObject(value);
+		}
+		return bytes.toByteArray();
+	}
+	
+	private static Object javaDeserialize(byte[] data) throws IOException
+	{
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data)))
+		{
+			return in.readObject();
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package com.universeprojects.cacheddatastore;
+
+import java.io.IOException;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * Turns entities into the bytes that the CachedDatastoreService stores in memcache and back. 
+ * 
+ * Every instance sharing a memcache must be able to decode what the others encode, so a codec's
+ * format should only ever be changed in a backwards compatible way.
+ *
+ * @see CachedDatastoreService#setEntityValueCodec(EntityValueCodec)
+ */
+public interface EntityValueCodec
+{
+	public byte[] encode(Entity entity) throws IOException;
+	
+	public Entity decode(byte[] data) throws IOException;
+}
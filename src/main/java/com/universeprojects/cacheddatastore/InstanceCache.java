@@ -0,0 +1,315 @@
+package com.universeprojects.cacheddatastore;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is the bounded in-process cache that backs the CachedDatastoreService's instance cache.
+ *
+ * Entries are evicted using a segmented LRU. New entries go into a probation segment and are only
+ * promoted into the protected segment once they are read again, so a burst of one-off entries
+ * (a big query for example) cannot flush out the entries that are actually being reused.
+ *
+ * The cache is bounded both by entry count and by the estimated byte size of the entries. Expired
+ * entries are removed by a periodic sweep that piggybacks on cache activity since we're not allowed
+ * to run our own background threads on appengine.
+ *
+ * @author Owner
+ *
+ */
+public class InstanceCache
+{
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+	public static final long DEFAULT_MAX_BYTES = 32L*1024L*1024L;
+	public static final long DEFAULT_CLEANUP_INTERVAL_MS = 10000L;
+
+	/**
+	 * The percentage of the maximum entry count that the protected segment is allowed to use.
+	 */
+	private static final int PROTECTED_SEGMENT_PERCENT = 80;
+
+	private static class CacheEntry
+	{
+		final InstanceCacheWrapper wrapper;
+		final long estimatedBytes;
+
+		CacheEntry(InstanceCacheWrapper wrapper, long estimatedBytes)
+		{
+			this.wrapper = wrapper;
+			this.estimatedBytes = estimatedBytes;
+		}
+	}
+
+	// Both segments are access ordered, so the eldest entry is always the least recently used one
+	private final LinkedHashMap<String, CacheEntry> probationSegment = new LinkedHashMap<String, CacheEntry>(64, 0.75f, true);
+	private final LinkedHashMap<String, CacheEntry> protectedSegment = new LinkedHashMap<String, CacheEntry>(64, 0.75f, true);
+	private long estimatedBytes = 0;
+
+	private volatile int maxEntries;
+	private volatile long maxBytes;
+	private volatile long cleanupIntervalMs = DEFAULT_CLEANUP_INTERVAL_MS;
+	private volatile long lastCleanup = System.currentTimeMillis();
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	private final AtomicLong expirationCount = new AtomicLong();
+
+	public InstanceCache()
+	{
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+	}
+
+	public InstanceCache(int maxEntries, long maxBytes)
+	{
+		if (maxEntries<1) throw new IllegalArgumentException("maxEntries must be greater than 0.");
+		if (maxBytes<1) throw new IllegalArgumentException("maxBytes must be greater than 0.");
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the wrapper stored under the given key, but only if it hasn't expired.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public InstanceCacheWrapper get(String key)
+	{
+		cleanUpIfDue();
+
+		InstanceCacheWrapper result = null;
+		synchronized(this)
+		{
+			CacheEntry entry = protectedSegment.get(key);
+			if (entry==null)
+			{
+				entry = probationSegment.remove(key);
+				if (entry!=null)
+				{
+					// This is the second time this entry has been used, so it graduates to the protected segment
+					protectedSegment.put(key, entry);
+					demoteProtectedOverflow();
+				}
+			}
+
+			if (entry!=null)
+			{
+				if (entry.wrapper.isExpired(System.currentTimeMillis()))
+				{
+					removeEntry(key);
+					expirationCount.incrementAndGet();
+				}
+				else
+					result = entry.wrapper;
+			}
+		}
+
+		if (result==null)
+			missCount.incrementAndGet();
+		else
+			hitCount.incrementAndGet();
+
+		return result;
+	}
+
+	public void put(String key, InstanceCacheWrapper wrapper)
+	{
+		if (key==null) throw new IllegalArgumentException("key cannot be null.");
+		if (wrapper==null) throw new IllegalArgumentException("wrapper cannot be null.");
+
+		// Size estimation is done outside of the lock, it walks the whole object
+		long size = DBUtils.estimateSize(key) + DBUtils.estimateSize(wrapper.data);
+
+		synchronized(this)
+		{
+			removeEntry(key);
+
+			probationSegment.put(key, new CacheEntry(wrapper, size));
+			estimatedBytes += size;
+
+			evictOverflow();
+		}
+
+		cleanUpIfDue();
+	}
+
+	public void putAll(Map<String, InstanceCacheWrapper> wrappers)
+	{
+		for(String key:wrappers.keySet())
+			put(key, wrappers.get(key));
+	}
+
+	public synchronized InstanceCacheWrapper remove(String key)
+	{
+		CacheEntry entry = removeEntry(key);
+		if (entry==null) return null;
+		return entry.wrapper;
+	}
+
+	public synchronized void clear()
+	{
+		probationSegment.clear();
+		protectedSegment.clear();
+		estimatedBytes = 0;
+	}
+
+	public synchronized int size()
+	{
+		return probationSegment.size()+protectedSegment.size();
+	}
+
+	public synchronized long getEstimatedBytes()
+	{
+		return estimatedBytes;
+	}
+
+	/**
+	 * Removes every expired entry from the cache right now. This normally happens on its own
+	 * every so often (see setCleanupIntervalMs()), but it can be called directly as well.
+	 */
+	public void cleanUp()
+	{
+		lastCleanup = System.currentTimeMillis();
+
+		synchronized(this)
+		{
+			long now = System.currentTimeMillis();
+			removeExpired(probationSegment, now);
+			removeExpired(protectedSegment, now);
+		}
+	}
+
+	private void cleanUpIfDue()
+	{
+		if (System.currentTimeMillis()-lastCleanup>=cleanupIntervalMs)
+			cleanUp();
+	}
+
+	private void removeExpired(LinkedHashMap<String, CacheEntry> segment, long now)
+	{
+		Iterator<CacheEntry> iterator = segment.values().iterator();
+		while(iterator.hasNext())
+		{
+			CacheEntry entry = iterator.next();
+			if (entry.wrapper.isExpired(now))
+			{
+				iterator.remove();
+				estimatedBytes -= entry.estimatedBytes;
+				expirationCount.incrementAndGet();
+			}
+		}
+	}
+
+	private CacheEntry removeEntry(String key)
+	{
+		CacheEntry entry = probationSegment.remove(key);
+		if (entry==null)
+			entry = protectedSegment.remove(key);
+
+		if (entry!=null)
+			estimatedBytes -= entry.estimatedBytes;
+
+		return entry;
+	}
+
+	/**
+	 * If the protected segment grew too large, the least recently used protected entries are
+	 * moved back into the probation segment where they will be the last to be evicted.
+	 */
+	private void demoteProtectedOverflow()
+	{
+		int maxProtected = Math.max(1, (int)((long)maxEntries*PROTECTED_SEGMENT_PERCENT/100));
+		while(protectedSegment.size()>maxProtected)
+		{
+			Map.Entry<String, CacheEntry> eldest = protectedSegment.entrySet().iterator().next();
+			protectedSegment.remove(eldest.getKey());
+			probationSegment.put(eldest.getKey(), eldest.getValue());
+		}
+	}
+
+	private void evictOverflow()
+	{
+		while(probationSegment.size()+protectedSegment.size()>maxEntries || (estimatedBytes>maxBytes && probationSegment.size()+protectedSegment.size()>0))
+		{
+			// Victims always come out of the probation segment first
+			LinkedHashMap<String, CacheEntry> segment = probationSegment.isEmpty() ? protectedSegment : probationSegment;
+			Map.Entry<String, CacheEntry> eldest = segment.entrySet().iterator().next();
+			segment.remove(eldest.getKey());
+			estimatedBytes -= eldest.getValue().estimatedBytes;
+			evictionCount.incrementAndGet();
+		}
+	}
+
+	public int getMaxEntries()
+	{
+		return maxEntries;
+	}
+
+	public void setMaxEntries(int maxEntries)
+	{
+		if (maxEntries<1) throw new IllegalArgumentException("maxEntries must be greater than 0.");
+		this.maxEntries = maxEntries;
+		synchronized(this)
+		{
+			demoteProtectedOverflow();
+			evictOverflow();
+		}
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public void setMaxBytes(long maxBytes)
+	{
+		if (maxBytes<1) throw new IllegalArgumentException("maxBytes must be greater than 0.");
+		this.maxBytes = maxBytes;
+		synchronized(this)
+		{
+			evictOverflow();
+		}
+	}
+
+	public void setCleanupIntervalMs(long cleanupIntervalMs)
+	{
+		this.cleanupIntervalMs = cleanupIntervalMs;
+	}
+
+	public long getHitCount()
+	{
+		return hitCount.get();
+	}
+
+	public long getMissCount()
+	{
+		return missCount.get();
+	}
+
+	/**
+	 * The number of entries that were removed to stay within the entry count or byte size limits.
+	 * Expired entries are not included, see getExpirationCount().
+	 *
+	 * @return
+	 */
+	public long getEvictionCount()
+	{
+		return evictionCount.get();
+	}
+
+	public long getExpirationCount()
+	{
+		return expirationCount.get();
+	}
+
+	public void resetStats()
+	{
+		hitCount.set(0);
+		missCount.set(0);
+		evictionCount.set(0);
+		expirationCount.set(0);
+	}
+}
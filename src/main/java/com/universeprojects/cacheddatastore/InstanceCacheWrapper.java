@@ -9,11 +9,33 @@ public class InstanceCacheWrapper implements Serializable
 
 	final public Object data;
 	final public Date expiry;
+	/**
+	 * The memcache generation of the data's kind at the time it was cached, or null if the
+	 * data isn't subject to generation checks.
+	 */
+	final public Long generation;
 	
 	public InstanceCacheWrapper(Object data, Date expiry)
+	{
+		this(data, expiry, null);
+	}
+	
+	public InstanceCacheWrapper(Object data, Date expiry, Long generation)
 	{
 		this.data = data;
 		this.expiry = expiry;
+		this.generation = generation;
+	}
+	
+	/**
+	 * A wrapper with no expiry never expires.
+	 * 
+	 * @param currentTimeMs
+	 * @return
+	 */
+	public boolean isExpired(long currentTimeMs)
+	{
+		return expiry!=null && expiry.getTime()<=currentTimeMs;
 	}
 
 	@Override
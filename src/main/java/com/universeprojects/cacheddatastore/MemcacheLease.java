@@ -0,0 +1,38 @@
+package com.universeprojects.cacheddatastore;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * This marker is stored in an entity's memcache slot while some request is loading
+ * that entity from the datastore. Other requests that find the marker know the entity
+ * is on its way and can wait for it instead of hitting the datastore themselves.
+ *
+ * Anything that reads entities out of memcache must treat this marker as a cache miss.
+ */
+public class MemcacheLease implements Serializable
+{
+	private static final long serialVersionUID = -2748915377436290571L;
+	private static final Random random = new Random();
+
+	final long token;
+
+	public MemcacheLease()
+	{
+		this.token = random.nextLong();
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (obj instanceof MemcacheLease)
+			return ((MemcacheLease)obj).token==token;
+		return false;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return (int)(token^(token>>>32));
+	}
+}
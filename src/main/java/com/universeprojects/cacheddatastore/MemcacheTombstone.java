@@ -0,0 +1,29 @@
+package com.universeprojects.cacheddatastore;
+
+import java.io.Serializable;
+
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * This marker is stored in an entity's memcache slot (and in the instance cache for kinds that use it) 
+ * after the datastore told us the entity doesn't exist. Lookups that find the marker can report the 
+ * entity as missing without going to the datastore.
+ *
+ * Tombstones are short lived and putting the entity simply overwrites them.
+ */
+public class MemcacheTombstone implements Serializable
+{
+	private static final long serialVersionUID = 5012834411569342771L;
+
+	final Key key;
+
+	public MemcacheTombstone(Key key)
+	{
+		this.key = key;
+	}
+
+	public Key getKey()
+	{
+		return key;
+	}
+}
@@ -0,0 +1,64 @@
+package com.universeprojects.cacheddatastore;
+
+/**
+ * Keeps track of how big one kind's entities are once they are encoded for memcache, see 
+ * CachedDatastoreService.getMemcacheValueStats().
+ *
+ * @author Owner
+ *
+ */
+public class MemcacheValueStats
+{
+	private long count = 0;
+	private long totalBytes = 0;
+	private long maxBytes = 0;
+	private long chunkedCount = 0;
+	
+	synchronized void record(int encodedBytes, boolean chunked)
+	{
+		count++;
+		totalBytes += encodedBytes;
+		if (encodedBytes>maxBytes)
+			maxBytes = encodedBytes;
+		if (chunked)
+			chunkedCount++;
+	}
+	
+	/**
+	 * @return How many entities of this kind were encoded.
+	 */
+	public synchronized long getCount()
+	{
+		return count;
+	}
+	
+	public synchronized long getTotalBytes()
+	{
+		return totalBytes;
+	}
+	
+	public synchronized long getAverageBytes()
+	{
+		if (count==0) return 0;
+		return totalBytes/count;
+	}
+	
+	public synchronized long getMaxBytes()
+	{
+		return maxBytes;
+	}
+	
+	/**
+	 * @return How many entities were too big for a single memcache value and had to be split into chunks.
+	 */
+	public synchronized long getChunkedCount()
+	{
+		return chunkedCount;
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return "MemcacheValueStats [count="+count+", averageBytes="+getAverageBytes()+", maxBytes="+maxBytes+", chunkedCount="+chunkedCount+"]";
+	}
+}
@@ -0,0 +1,72 @@
+package com.universeprojects.cacheddatastore;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Combines the results of several async batch calls that each return a map (like a chunked
+ * memcache getAll or datastore get) into a single future.
+ *
+ * @param <K>
+ * @param <V>
+ */
+class MergedMapFuture<K, V> implements Future<Map<K, V>>
+{
+	private final List<Future<Map<K, V>>> futures;
+
+	MergedMapFuture(List<Future<Map<K, V>>> futures)
+	{
+		this.futures = futures;
+	}
+
+	@Override
+	public Map<K, V> get() throws InterruptedException, ExecutionException
+	{
+		Map<K, V> result = new HashMap<K, V>();
+		for(Future<Map<K, V>> future:futures)
+			result.putAll(future.get());
+		return result;
+	}
+
+	@Override
+	public Map<K, V> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+	{
+		long deadline = System.nanoTime()+unit.toNanos(timeout);
+		Map<K, V> result = new HashMap<K, V>();
+		for(Future<Map<K, V>> future:futures)
+			result.putAll(future.get(Math.max(0, deadline-System.nanoTime()), TimeUnit.NANOSECONDS));
+		return result;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning)
+	{
+		boolean cancelled = true;
+		for(Future<Map<K, V>> future:futures)
+			cancelled &= future.cancel(mayInterruptIfRunning);
+		return cancelled;
+	}
+
+	@Override
+	public boolean isCancelled()
+	{
+		for(Future<Map<K, V>> future:futures)
+			if (future.isCancelled())
+				return true;
+		return false;
+	}
+
+	@Override
+	public boolean isDone()
+	{
+		for(Future<Map<K, V>> future:futures)
+			if (future.isDone()==false)
+				return false;
+		return true;
+	}
+}
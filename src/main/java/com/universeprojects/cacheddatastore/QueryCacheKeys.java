@@ -0,0 +1,323 @@
+package com.universeprojects.cacheddatastore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+
+/**
+ * Works out the memcache keys used by the query cache. 
+ * 
+ * A cached query result is stamped with a set of counters that live in memcache. Writes increment the counters 
+ * they affect, which makes every result stamped with them invalid. Kinds using QueryCacheMode.KIND_GENERATION 
+ * only depend on the kind's generation counter (the same one the instance cache uses). For QueryCacheMode.PROPERTY 
+ * the counters are:
+ * <ul>
+ * <li>One per kind, for changes that can't be narrowed down (like deletes).</li>
+ * <li>One per kind for new entities, for queries without property filters.</li>
+ * <li>One per kind, property and value, for equality filters.</li>
+ * <li>One per kind and property that means "some value changed but we don't know which", also for equality filters.</li>
+ * <li>One per kind and property for any change at all, for sort orders.</li>
+ * </ul>
+ */
+final class QueryCacheKeys
+{
+	static final String RESULT_PREFIX = "QC-";
+	static final String COUNTER_PREFIX = "QCGEN-";
+	
+	private QueryCacheKeys()
+	{
+	}
+	
+	/**
+	 * @param q
+	 * @param limit
+	 * @return A string that uniquely describes the query, or null if the query can't be cached (projection and distinct queries).
+	 */
+	static String describe(Query q, int limit)
+	{
+		if (q.getKind()==null || q.getProjections().isEmpty()==false || q.getDistinct())
+			return null;
+		
+		StringBuilder sb = new StringBuilder();
+		appendPart(sb, q.getNamespace());
+		appendPart(sb, q.getKind());
+		appendPart(sb, q.getAncestor()==null ? "" : DBUtils.toCompactKeyString(q.getAncestor()));
+		
+		Filter filter = getFilter(q);
+		if (filter!=null)
+			appendFilter(sb, filter);
+		sb.append('|');
+		for(SortPredicate sort:q.getSortPredicates())
+			appendPart(sb, sort.getPropertyName()+" "+sort.getDirection());
+		sb.append('|').append(limit);
+		return sb.toString();
+	}
+	
+	/**
+	 * @param q
+	 * @param limit
+	 * @return Same as describe(), but for counting the query's results.
+	 */
+	static String describeCount(Query q, Integer limit)
+	{
+		String description = describe(q, limit==null ? -1 : limit);
+		if (description==null)
+			return null;
+		return "count|"+description;
+	}
+	
+	static String toResultKey(String description)
+	{
+		String key = RESULT_PREFIX+description;
+		if (key.length()>CachedDatastoreService.MAX_UNHASHED_MEMCACHE_KEY_LENGTH)
+			key = RESULT_PREFIX+"#"+CachedDatastoreService.hashMemcacheKey(description);
+		return key;
+	}
+	
+	/**
+	 * @param q
+	 * @return The counters a result of this query depends on, or null if the query has filters other than equality filters joined by AND.
+	 */
+	static Set<String> getPropertyCounterKeys(Query q)
+	{
+		List<FilterPredicate> predicates = new ArrayList<>();
+		Filter filter = getFilter(q);
+		if (filter!=null && collectEqualityPredicates(filter, predicates)==false)
+			return null;
+		
+		Set<String> counterKeys = new HashSet<>();
+		counterKeys.add(toKindCounterKey(q.getKind()));
+		
+		// A new entity only touches the counters of the properties it has, so queries that don't filter on any 
+		// property (other than the key) also have to hear about inserts
+		boolean filtersOnProperty = false;
+		for(FilterPredicate predicate:predicates)
+			if (Entity.KEY_RESERVED_PROPERTY.equals(predicate.getPropertyName())==false)
+				filtersOnProperty = true;
+		if (filtersOnProperty==false)
+			counterKeys.add(toInsertCounterKey(q.getKind()));
+		
+		for(FilterPredicate predicate:predicates)
+		{
+			counterKeys.add(toValueCounterKey(q.getKind(), predicate.getPropertyName(), predicate.getValue()));
+			counterKeys.add(toUnknownValueCounterKey(q.getKind(), predicate.getPropertyName()));
+		}
+		for(SortPredicate sort:q.getSortPredicates())
+			if (Entity.KEY_RESERVED_PROPERTY.equals(sort.getPropertyName())==false)
+				counterKeys.add(toAnyChangeCounterKey(q.getKind(), sort.getPropertyName()));
+		return counterKeys;
+	}
+	
+	/**
+	 * Adds the counters that have to be incremented when the given entity is put, based on what was changed since it was loaded.
+	 * 
+	 * @param entity
+	 * @param counterKeys
+	 */
+	static void addChangeCounterKeys(CachedEntity entity, Set<String> counterKeys)
+	{
+		String kind = entity.getKind();
+		if (entity.newEntity)
+		{
+			// A new entity with a key we were given could be overwriting an existing one whose values we don't know
+			if (entity.getKey().isComplete() && entity.preallocatedId==false)
+			{
+				counterKeys.add(toKindCounterKey(kind));
+				return;
+			}
+			
+			counterKeys.add(toInsertCounterKey(kind));
+			for(String propertyName:entity.getProperties().keySet())
+			{
+				if (entity.isUnindexedProperty(propertyName)) continue;
+				addValueCounterKeys(kind, propertyName, entity.getProperty(propertyName), counterKeys);
+				counterKeys.add(toAnyChangeCounterKey(kind, propertyName));
+			}
+			return;
+		}
+		
+		for(String propertyName:entity.getChangedProperties())
+		{
+			// A property that became (or stopped being) unindexed still leaves (or enters) the queries on its value
+			boolean wasIndexed = entity.wasUnindexedProperty(propertyName)==false;
+			boolean isIndexed = entity.isUnindexedProperty(propertyName)==false;
+			if (wasIndexed==false && isIndexed==false) continue;
+			
+			Object oldValue = entity.getOriginalProperty(propertyName);
+			Object newValue = entity.getProperty(propertyName);
+			if (oldValue==newValue && oldValue instanceof Collection)
+			{
+				// The list was changed in place so we don't know what it used to contain
+				counterKeys.add(toUnknownValueCounterKey(kind, propertyName));
+			}
+			else
+			{
+				if (wasIndexed)
+					addValueCounterKeys(kind, propertyName, oldValue, counterKeys);
+				if (isIndexed)
+					addValueCounterKeys(kind, propertyName, newValue, counterKeys);
+			}
+			counterKeys.add(toAnyChangeCounterKey(kind, propertyName));
+		}
+	}
+	
+	static String toKindCounterKey(String kind)
+	{
+		return toCounterKey(kind, "*");
+	}
+	
+	private static String toInsertCounterKey(String kind)
+	{
+		return toCounterKey(kind, "+");
+	}
+	
+	private static void addValueCounterKeys(String kind, String propertyName, Object value, Set<String> counterKeys)
+	{
+		// An equality filter matches a list property if any of its elements match
+		if (value instanceof Collection)
+		{
+			for(Object element:(Collection<?>)value)
+				counterKeys.add(toValueCounterKey(kind, propertyName, element));
+		}
+		else
+			counterKeys.add(toValueCounterKey(kind, propertyName, value));
+	}
+	
+	private static String toValueCounterKey(String kind, String propertyName, Object value)
+	{
+		return toCounterKey(kind, propertyName.length()+":"+propertyName+"="+toValueString(value));
+	}
+	
+	private static String toUnknownValueCounterKey(String kind, String propertyName)
+	{
+		return toCounterKey(kind, propertyName.length()+":"+propertyName+"?");
+	}
+	
+	private static String toAnyChangeCounterKey(String kind, String propertyName)
+	{
+		return toCounterKey(kind, propertyName.length()+":"+propertyName+"~");
+	}
+	
+	private static String toCounterKey(String kind, String part)
+	{
+		String key = COUNTER_PREFIX+kind.length()+":"+kind+"|"+part;
+		if (key.length()>CachedDatastoreService.MAX_UNHASHED_MEMCACHE_KEY_LENGTH)
+			key = COUNTER_PREFIX+"#"+CachedDatastoreService.hashMemcacheKey(key);
+		return key;
+	}
+	
+	/**
+	 * Turns a filter value into a string. Values that the datastore considers equal (like an Integer and 
+	 * a Long with the same value) give the same string.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	private static String toValueString(Object value)
+	{
+		if (value==null)
+			return "n";
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+			return "l"+((Number)value).longValue();
+		if (value instanceof Double || value instanceof Float)
+			return "d"+((Number)value).doubleValue();
+		if (value instanceof Boolean)
+			return "b"+value;
+		if (value instanceof String)
+			return "s"+value;
+		if (value instanceof Key)
+			return "k"+DBUtils.toCompactKeyString((Key)value);
+		if (value instanceof Date)
+			return "t"+((Date)value).getTime();
+		return value.getClass().getSimpleName()+":"+value;
+	}
+	
+	@SuppressWarnings("deprecation")
+	private static Filter getFilter(Query q)
+	{
+		if (q.getFilter()!=null)
+			return q.getFilter();
+		
+		// Queries built with the old addFilter()
+		List<FilterPredicate> predicates = q.getFilterPredicates();
+		if (predicates.isEmpty())
+			return null;
+		if (predicates.size()==1)
+			return predicates.get(0);
+		return CompositeFilterOperator.and(new ArrayList<Filter>(predicates));
+	}
+	
+	private static boolean collectEqualityPredicates(Filter filter, List<FilterPredicate> predicates)
+	{
+		if (filter instanceof FilterPredicate)
+		{
+			FilterPredicate predicate = (FilterPredicate)filter;
+			if (predicate.getOperator()!=FilterOperator.EQUAL)
+				return false;
+			predicates.add(predicate);
+			return true;
+		}
+		
+		if (filter instanceof CompositeFilter)
+		{
+			CompositeFilter composite = (CompositeFilter)filter;
+			if (composite.getOperator()!=CompositeFilterOperator.AND)
+				return false;
+			for(Filter subFilter:composite.getSubFilters())
+				if (collectEqualityPredicates(subFilter, predicates)==false)
+					return false;
+			return true;
+		}
+		
+		return false;
+	}
+	
+	private static void appendFilter(StringBuilder sb, Filter filter)
+	{
+		if (filter instanceof FilterPredicate)
+		{
+			FilterPredicate predicate = (FilterPredicate)filter;
+			sb.append('(');
+			appendPart(sb, predicate.getPropertyName());
+			appendPart(sb, predicate.getOperator().name());
+			if (predicate.getValue() instanceof Collection)
+			{
+				for(Object value:(Collection<?>)predicate.getValue())
+					appendPart(sb, toValueString(value));
+			}
+			else
+				appendPart(sb, toValueString(predicate.getValue()));
+			sb.append(')');
+		}
+		else
+		{
+			CompositeFilter composite = (CompositeFilter)filter;
+			sb.append(composite.getOperator().name()).append('(');
+			for(Filter subFilter:composite.getSubFilters())
+				appendFilter(sb, subFilter);
+			sb.append(')');
+		}
+	}
+	
+	/**
+	 * Parts are length prefixed so values containing separators can't make two different queries look the same.
+	 */
+	private static void appendPart(StringBuilder sb, String part)
+	{
+		if (part==null) part = "";
+		sb.append(part.length()).append(':').append(part).append(',');
+	}
+}
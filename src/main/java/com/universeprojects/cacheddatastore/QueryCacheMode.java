@@ -0,0 +1,30 @@
+package com.universeprojects.cacheddatastore;
+
+/**
+ * How the results of a kind's queries are cached, see CachePolicy.withQueryCache().
+ */
+public enum QueryCacheMode
+{
+	/** Every query goes to the datastore. */
+	NONE,
+	/**
+	 * The results (keys or counts) of equality queries, optionally sorted, are cached in memcache. A cached result is 
+	 * invalidated when an entity of the kind gains or loses one of the values the query filters on, or when a 
+	 * property it sorts on changes. Deleting an entity invalidates every cached query of its kind.
+	 * 
+	 * Changes are only seen when they are made through CachedEntity.setProperty() and friends, not when the 
+	 * underlying Entity is modified directly. The old value of a property is the one this instance loaded, so if 
+	 * another writer changed it in between (last writer wins) the queries on that value aren't invalidated. 
+	 * That's why this mode needs a TTL, the result is only stale until it expires.
+	 */
+	PROPERTY,
+	/**
+	 * Results of any query on the kind are cached, including counts. Every result is stamped with the kind's 
+	 * generation counter, which is incremented by every put or delete of the kind. This is coarse (any write 
+	 * invalidates every cached query of the kind) but it is cheap, so it's best for kinds that are read a lot 
+	 * more often than they're written.
+	 * 
+	 * Queries that start from a cursor are never cached.
+	 */
+	KIND_GENERATION
+}
@@ -0,0 +1,44 @@
+package com.universeprojects.cacheddatastore;
+
+import java.util.List;
+
+import com.google.appengine.api.datastore.Cursor;
+
+/**
+ * One page of query results along with the cursor that continues after it. These are returned by
+ * CachedDatastoreService.fetchPage() and fetchKeysPage().
+ *
+ * Since the cursor travels with the results instead of being kept on the service, several threads
+ * can page through queries on the same CachedDatastoreService at once.
+ *
+ * @param <T>
+ */
+public class QueryPage<T>
+{
+	final private List<T> results;
+	final private Cursor endCursor;
+
+	public QueryPage(List<T> results, Cursor endCursor)
+	{
+		this.results = results;
+		this.endCursor = endCursor;
+	}
+
+	public List<T> getResults()
+	{
+		return results;
+	}
+
+	/**
+	 * @return The cursor to pass in to get the next page, or null if the query didn't produce one.
+	 */
+	public Cursor getEndCursor()
+	{
+		return endCursor;
+	}
+
+	public boolean hasEndCursor()
+	{
+		return endCursor!=null;
+	}
+}